@@ -1,7 +1,69 @@
-import java.util.List;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.constant.ConstantDescs;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongFunction;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 sealed interface Either<L, R> permits Either.Left, Either.Right {
   record Left<L, R>(L value) implements Either<L, R> {}
@@ -17,7 +79,417 @@ sealed interface Either<L, R> permits Either.Left, Either.Right {
   }
 }
 
-record Source(int offset, String text) {
+record Source(int offset, CharSequence text) {
+}
+
+/// Random access text a parse runs over. Each implementation reads its storage in place, so a
+/// `StringBuilder`, `CharBuffer` or Latin-1 `byte[]` is parsed without first copying it into a `String`.
+sealed interface Input permits StringInput, CharSequenceInput, CharBufferInput, Latin1Input, Utf8Input {
+
+    int length();
+
+    char charAt(int index);
+
+    /// The text as handed to [Source].
+    CharSequence text();
+
+    String substring(int start, int end);
+
+    default int codePointAt(int index) {
+        char c = charAt(index);
+        if (Character.isHighSurrogate(c) && index + 1 < length()) {
+            char d = charAt(index + 1);
+            if (Character.isLowSurrogate(d)) {
+                return Character.toCodePoint(c, d);
+            }
+        }
+        return c;
+    }
+
+    /// Index just past the code point at `index`.
+    default int nextIndex(int index) {
+        return index + Character.charCount(codePointAt(index));
+    }
+
+    default boolean startsWith(String prefix, int offset) {
+        int n = prefix.length();
+        if (offset < 0 || offset > length() - n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static Input of(CharSequence text) {
+        return switch (text) {
+            case String s -> new StringInput(s);
+            case CharBuffer b -> new CharBufferInput(b);
+            case Latin1Input l -> l;
+            case Utf8Input u -> u;
+            default -> new CharSequenceInput(text);
+        };
+    }
+
+    /// Latin-1 (ISO-8859-1) encoded `bytes`, one byte per char.
+    static Latin1Input latin1(byte[] bytes) {
+        return new Latin1Input(bytes, 0, bytes.length);
+    }
+
+    /// UTF-8 encoded `bytes`, indexed by byte offset.
+    static Utf8Input utf8(byte[] bytes) {
+        return new Utf8Input(MemorySegment.ofArray(bytes), 0, bytes.length);
+    }
+}
+
+record StringInput(String text) implements Input {
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        return text.substring(start, end);
+    }
+
+    @Override
+    public int codePointAt(int index) {
+        return text.codePointAt(index);
+    }
+
+    @Override
+    public boolean startsWith(String prefix, int offset) {
+        return text.startsWith(prefix, offset);
+    }
+}
+
+record CharSequenceInput(CharSequence text) implements Input {
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        return text.subSequence(start, end).toString();
+    }
+}
+
+/// Reads a heap buffer through its backing array and a direct buffer through absolute gets; indexes are
+/// relative to the buffer's position, as in [CharBuffer#charAt(int)].
+static final class CharBufferInput implements Input {
+
+    private final CharBuffer buffer;
+    private final char[] array;
+    private final int base;
+    private final int length;
+
+    CharBufferInput(CharBuffer buffer) {
+        this.buffer = buffer;
+        this.length = buffer.remaining();
+        if (buffer.hasArray()) {
+            this.array = buffer.array();
+            this.base = buffer.arrayOffset() + buffer.position();
+        } else {
+            this.array = null;
+            this.base = buffer.position();
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return array != null ? array[base + index] : buffer.get(base + index);
+    }
+
+    @Override
+    public CharSequence text() {
+        return buffer;
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        return array != null ?
+                new String(array, base + start, end - start) :
+                buffer.subSequence(start, end).toString();
+    }
+}
+
+/// UTF-8 bytes in a [MemorySegment], such as a [MappedFile], indexed by byte offset. ASCII is matched
+/// directly on the bytes and other code points are decoded only where a parser looks at them.
+///
+/// As a [CharSequence] it is a sequence of bytes: `length()` is the byte length, ASCII bytes read as
+/// themselves and other bytes as `U+FFFD`. Parsers read code points through [#codePointAt(int)] and
+/// [#nextIndex(int)], and values through [#substring(int, int)].
+static final class Utf8Input implements Input, CharSequence {
+
+    private final MemorySegment segment;
+    private final long base;
+    private final int length;
+
+    Utf8Input(MemorySegment segment, long base, int length) {
+        Objects.checkFromIndexSize(base, length, segment.byteSize());
+        this.segment = segment;
+        this.base = base;
+        this.length = length;
+    }
+
+    private int byteAt(int index) {
+        return segment.get(ValueLayout.JAVA_BYTE, base + index);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        Objects.checkIndex(index, length);
+        int b = byteAt(index);
+        return b >= 0 ? (char) b : '\uFFFD';
+    }
+
+    @Override
+    public CharSequence text() {
+        return this;
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        Objects.checkFromToIndex(start, end, length);
+        return new String(segment.asSlice(base + start, end - start).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int codePointAt(int index) {
+        Objects.checkIndex(index, length);
+        int b = byteAt(index);
+        if (b >= 0) {
+            return b;
+        }
+        int width = width(b);
+        if (width == 1 || index + width > length) {
+            return '\uFFFD';
+        }
+        int cp = b & (0xFF >>> (width + 1));
+        for (int i = 1; i < width; i++) {
+            int c = byteAt(index + i);
+            if ((c & 0xC0) != 0x80) {
+                return '\uFFFD';
+            }
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        return cp;
+    }
+
+    @Override
+    public int nextIndex(int index) {
+        return Math.min(index + width(byteAt(index)), length);
+    }
+
+    // byte length of the sequence a lead byte starts; stray continuation bytes count as one
+    private static int width(int lead) {
+        if (lead >= 0) {
+            return 1;
+        } else if ((lead & 0xE0) == 0xC0) {
+            return 2;
+        } else if ((lead & 0xF0) == 0xE0) {
+            return 3;
+        } else if ((lead & 0xF8) == 0xF0) {
+            return 4;
+        }
+        return 1;
+    }
+
+    @Override
+    public boolean startsWith(String prefix, int offset) {
+        if (offset < 0) {
+            return false;
+        }
+        int j = offset;
+        for (int i = 0, n = prefix.length(); i < n; ) {
+            int cp = prefix.codePointAt(i);
+            i += Character.charCount(cp);
+            if (cp < 0x80) {
+                if (j >= length || byteAt(j) != cp) {
+                    return false;
+                }
+                j++;
+            } else {
+                if (j >= length || codePointAt(j) != cp) {
+                    return false;
+                }
+                j = nextIndex(j);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        Objects.checkFromToIndex(start, end, length);
+        return new Utf8Input(segment, base + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length);
+    }
+}
+
+/// A UTF-8 file mapped into memory rather than read onto the heap. Inputs index by `int`, so a file larger
+/// than 2 GB is parsed as several [Utf8Input] windows split on line breaks.
+static final class MappedFile implements AutoCloseable {
+
+    private final Arena arena;
+    private final MemorySegment segment;
+
+    private MappedFile(Arena arena, MemorySegment segment) {
+        this.arena = arena;
+        this.segment = segment;
+    }
+
+    static MappedFile open(Path path) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedFile(arena, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+        } catch (IOException | RuntimeException ex) {
+            arena.close();
+            throw ex;
+        }
+    }
+
+    long size() {
+        return segment.byteSize();
+    }
+
+    /// The whole file as one input.
+    Utf8Input input() {
+        if (segment.byteSize() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("file of %d bytes needs windows()".formatted(segment.byteSize()));
+        }
+        return new Utf8Input(segment, 0, (int) segment.byteSize());
+    }
+
+    /// Splits the file into inputs of at most `maxBytes`, each ending just after a line break (or at the end
+    /// of the file).
+    List<Utf8Input> windows(int maxBytes) {
+        List<Utf8Input> windows = new ArrayList<>();
+        long size = segment.byteSize();
+        for (long from = 0; from < size; ) {
+            long to = Math.min(from + maxBytes, size);
+            if (to < size) {
+                long end = to;
+                while (end > from && segment.get(ValueLayout.JAVA_BYTE, end - 1) != '\n') {
+                    end--;
+                }
+                if (end == from) {
+                    throw new IllegalStateException("no line break within %d bytes of offset %d".formatted(maxBytes, from));
+                }
+                to = end;
+            }
+            windows.add(new Utf8Input(segment, from, (int) (to - from)));
+            from = to;
+        }
+        return windows;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
+
+/// Latin-1 bytes viewed as chars. It is also a [CharSequence], so it can be handed to [Source] directly.
+static final class Latin1Input implements Input, CharSequence {
+
+    private final byte[] bytes;
+    private final int from;
+    private final int to;
+
+    Latin1Input(byte[] bytes, int from, int to) {
+        Objects.checkFromToIndex(from, to, bytes.length);
+        this.bytes = bytes;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public int length() {
+        return to - from;
+    }
+
+    @Override
+    public char charAt(int index) {
+        Objects.checkIndex(index, to - from);
+        return (char) (bytes[from + index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence text() {
+        return this;
+    }
+
+    @Override
+    public String substring(int start, int end) {
+        Objects.checkFromToIndex(start, end, to - from);
+        return new String(bytes, from + start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public int codePointAt(int index) {
+        // Latin-1 has no surrogates
+        return charAt(index);
+    }
+
+    @Override
+    public boolean startsWith(String prefix, int offset) {
+        int n = prefix.length();
+        if (offset < 0 || offset > length() - n) {
+            return false;
+        }
+        for (int i = 0, j = from + offset; i < n; i++, j++) {
+            if (prefix.charAt(i) != (bytes[j] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        Objects.checkFromToIndex(start, end, to - from);
+        return new Latin1Input(bytes, from + start, from + end);
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
 }
 
 sealed interface Result<T> permits Result.Value, Result.Error {
@@ -57,7 +529,7 @@ sealed interface Result<T> permits Result.Value, Result.Error {
               Error occurred at %d in '%s'.
                 expected: %s
                 actual:   %s
-              """);
+              """.formatted(source.offset(), source.text(), expected, actual));
         }
     }
 
@@ -130,6 +602,12 @@ void main() {
 
   valueTest("5060", new NumberParser(), Result.ofValue(new Source(4, "5060"), 5060));
   errorTest("ABC", new NumberParser(), Result.ofError(new Source(0, "ABC"), "number", "empty"));
+  valueTest("१२x", new NumberParser(), Result.ofValue(new Source(2, "१२x"), 12));
+  errorTest("99999999999", Parser.num(), Result.ofError(new Source(0, "99999999999"), "number within int range", "number out of range"));
+  valueTest("99999999999", Parser.longNum(), Result.ofValue(new Source(11, "99999999999"), 99999999999L));
+  valueTest("21", Parser.num().mapInt(n -> n * 2), Result.ofValue(new Source(2, "21"), 42));
+  valueTest("3xxx", Parser.num().bindInt(n -> Parser.token("x".repeat(n))), Result.ofValue(new Source(4, "3xxx"), "xxx"));
+  valueTest("Grüße世界-", Parser.word(), Result.ofValue(new Source(7, "Grüße世界-"), "Grüße世界"));
 
   valueTest(
       "'Carriage'",
@@ -149,6 +627,373 @@ void main() {
   Parser<String> wordLiteral = Parser.token("'").and( Parser.word().map(w -> Parser.token("'").and(Parser.value(w.getValue().get()))));
   valueTest("g'Carriage'", Parser.token("g").and(wordLiteral), Result.ofValue(new Source(11, "g'Carriage'"), "Carriage"));
 
+  // packrat: the backtracking `or` re-runs the literal rule at offset 0, which is served from the memo table
+  int[] literalRuns = {0};
+  Parser<String> countedLiteral = Parser.memo(0, source -> {
+      literalRuns[0]++;
+      return wordLiteral.parse(source);
+  });
+  valueTest(
+      "'Carriage'y",
+      Parser.packrat(countedLiteral.and(Parser.token("x")).or(countedLiteral.and(Parser.token("y")))),
+      Result.ofValue(new Source(11, "'Carriage'y"), Either.ofRight("y")));
+  if (literalRuns[0] != 1) {
+      throw new AssertionError("failed: memoized rule ran %d times".formatted(literalRuns[0]));
+  }
+  // a Source lambda parsing other text inside a packrat parse does not see the outer text's memo entries
+  String[] nested = {null};
+  Parser.packrat(Parser.memo(9, wordLiteral).and((Parser<String>) source -> {
+      nested[0] = Parser.memo(9, wordLiteral).parse(new Source(0, "'Other'")).getValue().orElse(null);
+      return Parser.value("").parse(source);
+  })).parse(new Source(0, "'Carriage'"));
+  if (!"Other".equals(nested[0])) {
+      throw new AssertionError("failed: nested parse of other text gave %s".formatted(nested[0]));
+  }
+
+  // cursor mode: one mutable cursor for the whole parse
+  Cursor cursor = new Cursor("'Carriage''Text'");
+  if (!Parser.oneOrMore(wordLiteral).parse(cursor) || cursor.offset != 16 || !cursor.value.equals(List.of("Carriage", "Text"))) {
+      throw new AssertionError("failed: cursor parse ended at %d with %s".formatted(cursor.offset, cursor.value));
+  }
+
+  // failures are reported at the furthest offset reached, naming every alternative that failed there
+  errorTest(
+      "g'Carr",
+      Parser.token("g").and(wordLiteral).or(Parser.token("g").and(Parser.token("-"))),
+      Result.ofError(new Source(6, "g'Carr"), "token '", "not the token '"));
+  errorTest(
+      "gw",
+      Parser.token("g").and(Parser.token("-").or(Parser.token("'"))),
+      Result.ofError(new Source(1, "gw"), "token - or token '", "not the token -"));
+
+  // compiled grammars give the same results as the interpreter, and fall back to it for lambdas
+  valueTest(
+      "'Carriage''Text''Manipulation''Language'",
+      Parser.compile(Parser.oneOrMore(wordLiteral)),
+      Result.ofValue(new Source(40, "'Carriage''Text''Manipulation''Language'"), List.of("Carriage", "Text", "Manipulation", "Language")));
+  valueTest(
+      "g-5",
+      Parser.compile(Parser.token("g").and(Parser.token("'").or(Parser.token("-"))).and(Parser.num())),
+      Result.ofValue(new Source(3, "g-5"), 5));
+  errorTest(
+      "gw",
+      Parser.compile(Parser.token("g").and(Parser.token("-").or(Parser.token("'")))),
+      Result.ofError(new Source(1, "gw"), "token - or token '", "not the token -"));
+  // two parsers of the same token report it once
+  errorTest(
+      "gw",
+      Parser.token("g").and(Parser.token("-").and(Parser.token("x")).or(Parser.token("-"))),
+      Result.ofError(new Source(1, "gw"), "token -", "not the token -"));
+
+  // incremental: after editing 'Text' only the damaged literal is parsed again
+  int[] literalParses = {0};
+  Parser<String> literalRule = Parser.memo(1, (CursorParser<String>) c -> {
+      literalParses[0]++;
+      return wordLiteral.parse(c);
+  });
+  IncrementalParse<List<String>> document = IncrementalParse.parse(Parser.zeroOrMore(literalRule), "'Carriage''Text''Manipulation''Language'");
+  literalParses[0] = 0;
+  IncrementalParse<List<String>> edited = document.edit(12, 1, "");
+  if (!edited.result().equals(Result.ofValue(new Source(39, "'Carriage''Txt''Manipulation''Language'"), List.of("Carriage", "Txt", "Manipulation", "Language")))) {
+      throw new AssertionError("failed: incremental reparse gave %s".formatted(edited.result()));
+  }
+  if (literalParses[0] != 1) {
+      throw new AssertionError("failed: incremental reparse parsed %d literals".formatted(literalParses[0]));
+  }
+  // a reused failure reports every expectation of its furthest failure, as a fresh parse does
+  Parser<String> calls = Parser.zeroOrMore(Parser.memo(10, Parser.token(":").and(Parser.token("up").or(Parser.token("dn")))))
+          .and(Parser.token("."));
+  Result<String> reparsed = IncrementalParse.parse(calls, ":up:x.").edit(1, 2, "dn").result();
+  if (!reparsed.equals(calls.parse(new Source(0, ":dn:x."))) || !reparsed.getErrorMessage().get().contains("token up or token dn")) {
+      throw new AssertionError("failed: incremental reparse reported %s".formatted(reparsed));
+  }
+
+  // parallel repetition: chunks split between `''` are parsed on the fork/join pool and stitched in order
+  Boundary betweenLiterals = (input, from) -> {
+      for (int i = Math.max(from, 1), l = input.length(); i < l; i++) {
+          if (input.charAt(i - 1) == '\'' && input.charAt(i) == '\'') {
+              return i;
+          }
+      }
+      return input.length();
+  };
+  String manyLiterals = "'Carriage''Text''Manipulation''Language'".repeat(500);
+  Result<List<String>> sequential = Parser.zeroOrMore(wordLiteral).parse(new Source(0, manyLiterals + "'Carr"));
+  Result<List<String>> parallel = Parser.parallelZeroOrMore(wordLiteral, betweenLiterals, 1000).parse(new Source(0, manyLiterals + "'Carr"));
+  if (!parallel.equals(sequential) || parallel.getValue().get().size() != 2000) {
+      throw new AssertionError("failed: parallel repetition gave %s".formatted(parallel.getSource()));
+  }
+  // newline-delimited records split with Boundary.after, which also finds a delimiter just before `from`
+  Boundary afterNewline = Boundary.after("\n");
+  Input lines = Input.of("ab\ncd\nef");
+  if (afterNewline.next(lines, 3) != 3 || afterNewline.next(lines, 4) != 6 || afterNewline.next(lines, 7) != 8) {
+      throw new AssertionError("failed: Boundary.after gave %d".formatted(afterNewline.next(lines, 4)));
+  }
+  Parser<String> line = Parser.word().and(Parser.token("\n"));
+  String records = "Carriage\nText\n".repeat(1000);
+  Result<List<String>> parallelLines = Parser.parallelOneOrMore(line, afterNewline, 500).parse(new Source(0, records));
+  if (!parallelLines.equals(Parser.oneOrMore(line).parse(new Source(0, records))) || parallelLines.getValue().get().size() != 2000) {
+      throw new AssertionError("failed: parallel records gave %s".formatted(parallelLines.getSource()));
+  }
+
+  // batch: many inputs on virtual threads with pooled cursors
+  try (BatchParser<List<String>> batch = new BatchParser<>(Parser.packrat(Parser.oneOrMore(Parser.memo(2, wordLiteral))), 8)) {
+      AtomicInteger parsed = new AtomicInteger();
+      batch.submitAll(IntStream.range(0, 1000).mapToObj(i -> "'Item''" + i + "'"), (text, result) -> {
+          if (!result.getValue().equals(Optional.of(List.of("Item", text.subSequence(7, text.length() - 1).toString())))) {
+              throw new AssertionError("failed: batch parse of %s gave %s".formatted(text, result));
+          }
+          parsed.incrementAndGet();
+      }).join();
+      if (parsed.get() != 1000 || !batch.submit("'Carr").join().equals(Result.ofError(new Source(5, "'Carr"), "token '", "not the token '"))) {
+          throw new AssertionError("failed: batch parsed %d inputs".formatted(parsed.get()));
+      }
+  }
+
+  // profiling: the backtracking `or` re-invokes the literal rule at offset 0
+  Profiler profiler = new Profiler(true);
+  Parser<String> profiledLiteral = profiler.rule("literal", wordLiteral);
+  Parser<Either<String, String>> profiledGrammar = Parser.compile(profiler.root(profiledLiteral.and(Parser.token("x")).or(profiledLiteral.and(Parser.token("y")))));
+  profiledGrammar.parse(new Source(0, "'Carriage'y"));
+  Profiler.RuleStats literalStats = profiler.stats("literal");
+  if (literalStats.invocations.sum() != 2 || literalStats.successes.sum() != 2 || literalStats.reinvocations.sum() != 1) {
+      throw new AssertionError("failed: profile was%n%s".formatted(profiler.report()));
+  }
+  // parsing the same text again starts afresh rather than counting every offset as reinvoked, also when
+  // the grammar is called directly on a cursor rather than through Parser.parse
+  profiledGrammar.parse(new Source(0, "'Carriage'y"));
+  profiledGrammar.parse(new Cursor("'Carriage'y"));
+  if (literalStats.invocations.sum() != 6 || literalStats.reinvocations.sum() != 3) {
+      throw new AssertionError("failed: profile after more parses was%n%s".formatted(profiler.report()));
+  }
+  // without a root each outermost rule call is its own pass
+  profiledLiteral.parse(new Cursor("'Carriage'"));
+  profiledLiteral.parse(new Cursor("'Carriage'"));
+  if (literalStats.invocations.sum() != 8 || literalStats.reinvocations.sum() != 3) {
+      throw new AssertionError("failed: profile of direct rule calls was%n%s".formatted(profiler.report()));
+  }
+  System.out.println(profiler.report());
+  if (new Profiler(false).rule("literal", wordLiteral) != wordLiteral) {
+      throw new AssertionError("failed: disabled profiler wrapped the rule");
+  }
+
+  // flight recorder: parse, memo table and (with a zero threshold) rule events
+  try (Recording recording = new Recording()) {
+      recording.enable(ParseEvent.class);
+      recording.enable(MemoTableEvent.class);
+      recording.enable(RuleEvent.class).withThreshold(Duration.ZERO);
+      recording.start();
+      // the nested run of the Source lambda is part of the one recorded parse
+      Parser.packrat(Parser.oneOrMore(Parser.memo(3, wordLiteral)).and((Parser<String>) source -> Parser.value("").parse(source)))
+              .parse(new Source(0, "'Carriage''Text'"));
+      recording.stop();
+      Path file = Files.createTempFile("carriage", ".jfr");
+      recording.dump(file);
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+      Files.delete(file);
+      Map<String, List<RecordedEvent>> byType = events.stream().collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+      RecordedEvent parse = byType.get("carriage.Parse").get(0);
+      RecordedEvent memo = byType.get("carriage.MemoTable").get(0);
+      if (byType.get("carriage.Parse").size() != 1 || !parse.getBoolean("success") || parse.getInt("offset") != 16
+              || parse.getInt("inputLength") != 16 || memo.getInt("entries") != 3 || memo.getLong("misses") != 3
+              || byType.get("carriage.Rule").size() != 3) {
+          throw new AssertionError("failed: recorded %s".formatted(events));
+      }
+  } catch (IOException e) {
+      throw new UncheckedIOException(e);
+  }
+
+  // parse cache: the least recently used text is evicted first
+  ParseCache<List<String>> cache = Parser.cache(Parser.oneOrMore(wordLiteral), 2);
+  Result<List<String>> cached = cache.parse(new Source(0, "'Carriage'"));
+  cache.parse(new Source(0, "'Text'"));
+  String equalText = new String("'Carriage'");
+  Result<List<String>> hit = cache.parse(new Source(0, equalText));
+  if (!hit.equals(cached) || hit.getSource().text() != equalText || hit.getValue().get() != cached.getValue().get()) {
+      throw new AssertionError("failed: cache missed an equal text");
+  }
+  // a builder may change after the parse, so it is parsed without touching the cache
+  if (!cache.parse(new Source(0, new StringBuilder("'Carriage'"))).getValue().equals(cached.getValue())) {
+      throw new AssertionError("failed: cache bypass gave a different value");
+  }
+  cache.parse(new Source(0, "'Language'"));
+  cache.parse(new Source(0, "'Carriage'"));
+  cache.parse(new Source(0, "'Text'"));
+  if (cache.hits() != 2 || cache.misses() != 4 || cache.evictions() != 2 || cache.size() != 2) {
+      throw new AssertionError("failed: cache had %d hits, %d misses and %d evictions".formatted(cache.hits(), cache.misses(), cache.evictions()));
+  }
+
+  // programs: the readme examples, run on a rope
+  String paragraph = """
+      Here lies a paragraph to demonstrate Carriage.
+      Feature list:
+      - position-oriented editing
+      - token-based concepts
+      - action oriented functions
+      - user-defined functions
+      """;
+  Program capitalize = Program.parse("(g-w :up)*");
+  if (!capitalize.equals(Program.parse("""
+          (
+            | Go to the next occurrence of hyphen(-) then to the next word(w).
+            g-w
+
+            | Call :up function on word to capitalize.
+            :up
+
+          | Match zero or more times.
+          )*
+          """))) {
+      throw new AssertionError("failed: documented program parsed to %s".formatted(capitalize));
+  }
+  Document readme = new Document(paragraph);
+  Rope original = readme.snapshot();
+  readme.run(capitalize);
+  readme.run(Program.parse("(gw'Carriage' :dn)*"));
+  String capitalized = """
+      Here lies a paragraph to demonstrate carriage.
+      Feature list:
+      - POSITION-ORIENTED editing
+      - TOKEN-BASED concepts
+      - ACTION oriented functions
+      - USER-DEFINED functions
+      """;
+  if (!readme.snapshot().toString().equals(capitalized) || !original.toString().equals(paragraph)) {
+      throw new AssertionError("failed: program produced%n%s".formatted(readme.snapshot()));
+  }
+  if (!Program.parse("gw'Carriage''.'").equals(Program.parse("gw'Carriage''.' | the same program\n"))) {
+      throw new AssertionError("failed: programs with the same literals differ");
+  }
+  errorTest("g", Program.parser(), Result.ofError(new Source(1, "g"), "token w or token ' or go target", "not the token w"));
+  errorTest("(gw'' :up)", Program.parser(), Result.ofError(new Source(4, "(gw'' :up)"), "literal text", "empty literal"));
+  errorTest("g-w'Text", Program.parser(), Result.ofError(new Source(8, "g-w'Text"), "token '", "not the token '"));
+  valueTest("g-w :up | comment", Parser.compile(Program.parser()),
+          Result.ofValue(new Source(17, "g-w :up | comment"), Program.parse("g-w\n:up")));
+
+  // a large document stays balanced and is edited in place of rebuilding strings
+  Rope large = Rope.of(paragraph.repeat(20_000));
+  Program.Execution execution = capitalize.run(large);
+  if (!execution.text().toString().equals(paragraph.repeat(20_000).replace("- position-oriented", "- POSITION-ORIENTED")
+          .replace("- token-based", "- TOKEN-BASED").replace("- action", "- ACTION").replace("- user-defined", "- USER-DEFINED"))
+          || execution.text().height() > 40 || !large.toString().equals(paragraph.repeat(20_000))) {
+      throw new AssertionError("failed: large program run gave height %d".formatted(execution.text().height()));
+  }
+
+  // search: the same matches on ropes as String#indexOf on the flat text
+  String haystack = (paragraph + "Grüße世界 'Carriage''Text''Manipulation' ").repeat(300);
+  Rope rope = Rope.of(haystack.substring(0, 5000)).concat(Rope.of(haystack.substring(5000)));
+  for (String needle : List.of("-", "世", "Manipulation", "Grüße世界", "Text''M", "not there")) {
+      for (int from = 0; from < haystack.length(); from += 997) {
+          if (Search.literal(needle).find(rope, from) != haystack.indexOf(needle, from)) {
+              throw new AssertionError("failed: search for %s from %d".formatted(needle, from));
+          }
+      }
+  }
+
+  // streaming repetition: fold, count and forward items without collecting them
+  valueTest("1,2,3", Parser.foldMany(Parser.num().bindInt(n -> Parser.token(",").or(Parser.value("")).map(r -> Parser.value(n))), () -> 0, Integer::sum),
+          Result.ofValue(new Source(5, "1,2,3"), 6));
+  valueTest("'Carriage''Text'x", Parser.skipMany(wordLiteral), Result.ofValue(new Source(16, "'Carriage''Text'x"), 2));
+  valueTest("'Carriage''Text'x", Parser.compile(Parser.skipMany(wordLiteral)), Result.ofValue(new Source(16, "'Carriage''Text'x"), 2));
+  List<String> forwarded = new ArrayList<>();
+  valueTest("'Carriage''Te", Parser.forEach(wordLiteral, forwarded::add), Result.ofValue(new Source(10, "'Carriage''Te"), 1));
+  if (!forwarded.equals(List.of("Carriage"))) {
+      throw new AssertionError("failed: forwarded %s".formatted(forwarded));
+  }
+  Cursor stream = new Cursor("ab".repeat(1_000_000));
+  IntParser pairs = Parser.skipMany(Parser.token("ab"));
+  long allocated = -((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+  boolean skipped = pairs.parseInt(stream);
+  allocated += ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+  if (!skipped || stream.intValue != 1_000_000 || allocated > 1 << 20) {
+      throw new AssertionError("failed: skipped %d items allocating %d bytes".formatted(stream.intValue, allocated));
+  }
+
+  // commit: once `g` matched, a bad word fails the whole choice instead of backtracking to `g-`
+  Parser<Either<String, String>> loose = Parser.token("g").and(Parser.word()).or(Parser.token("g-"));
+  Parser<Either<String, String>> committed = Parser.commit(Parser.token("g")).and(Parser.word()).or(Parser.token("g-"));
+  valueTest("g-", loose, Result.ofValue(new Source(2, "g-"), Either.ofRight("g-")));
+  valueTest("gx", committed, Result.ofValue(new Source(2, "gx"), Either.ofLeft("x")));
+  errorTest("g-", committed, Result.ofError(new Source(1, "g-"), "word character", "empty"));
+  errorTest("g-", Parser.compile(committed), Result.ofError(new Source(1, "g-"), "word character", "empty"));
+  errorTest("gx g-", Parser.oneOrMore(committed.and(Parser.token(" ").or(Parser.value("")))),
+          Result.ofError(new Source(4, "gx g-"), "word character", "empty"));
+  valueTest("gx g-", Parser.oneOrMore(loose.and(Parser.token(" ").or(Parser.value("")))),
+          Result.ofValue(new Source(5, "gx g-"), List.of(Either.ofLeft(" "), Either.ofRight(""))));
+  errorTest("gw'Text' :up (gw :xx)*", Program.parser(),
+          Result.ofError(new Source(18, "gw'Text' :up (gw :xx)*"), "token up or token dn", "not the token up"));
+
+  // dispatch on the next char: compiled choices give the interpreter's values and errors
+  Parser<?> alternatives = Parser.token("'").and(Parser.word()).or(Parser.num())
+          .or(Parser.commit(Parser.token("g")).and(Parser.word())).or(Parser.token("g-"))
+          .or(Parser.oneOrMore(Parser.anyChar().and(Parser.token("!"))))
+          .or(Parser.token("x").or(Parser.memo(5, Parser.word().and(Parser.token("?")))));
+  Parser<?> dispatched = Parser.compile(alternatives);
+  if (!dispatched.getClass().isHidden() || Parser.compile(dispatched) != dispatched) {
+      throw new AssertionError("failed: compiled grammar is not a hidden class constant");
+  }
+  for (String text : List.of("'abc", "42", "gx", "g-", "g", "x", "xy?", "-!", "!", "", "é?", "世界?", "é", "世")) {
+      Result<?> interpreted = alternatives.parse(new Source(0, text));
+      if (!interpreted.equals(dispatched.parse(new Source(0, text)))) {
+          throw new AssertionError("failed: dispatch on %s gave %s".formatted(text, dispatched.parse(new Source(0, text))));
+      }
+  }
+  Cursor memoized = new Cursor("c");
+  memoized.memo = new MemoTable();
+  if (!Parser.compile(Parser.memo(6, Parser.token("a")).or(Parser.memo(7, Parser.token("b"))).or(Parser.memo(8, Parser.token("c"))))
+          .parse(memoized) || memoized.memo.size() != 1) {
+      throw new AssertionError("failed: dispatch evaluated %d alternatives".formatted(memoized.memo.size()));
+  }
+  // repetitions, memo rules and packrat parses compile into the handle tree of their items
+  Parser<?> repeated = Parser.packrat(Parser.oneOrMore(Parser.memo(11, wordLiteral).and(Parser.token(",").or(Parser.value(""))))
+          .and(Parser.foldMany(Parser.commit(Parser.token("!")).and(Parser.num()), () -> 0, Integer::sum))
+          .and(Parser.skipMany(Parser.token("?"))));
+  Parser<?> compiledRepeated = Parser.compile(repeated);
+  for (String text : List.of("'a','b'!1!2??", "'a'", "'a','", "'a'!x", "'a'!1!", "", "??")) {
+      Result<?> interpreted = repeated.parse(new Source(0, text));
+      if (!interpreted.equals(compiledRepeated.parse(new Source(0, text)))) {
+          throw new AssertionError("failed: compiled repetition of %s gave %s".formatted(text, compiledRepeated.parse(new Source(0, text))));
+      }
+  }
+
+  // committed memo entries are dropped instead of growing the table with the input
+  Cursor committedStream = new Cursor("ab".repeat(100_000));
+  committedStream.memo = new MemoTable();
+  if (!Parser.skipMany(Parser.commit(Parser.memo(4, Parser.token("ab")))).parseInt(committedStream)
+          || committedStream.intValue != 100_000 || committedStream.memo.size() > 1 << 10) {
+      throw new AssertionError("failed: %d memo entries after committing".formatted(committedStream.memo.size()));
+  }
+
+  // zero-copy inputs: builders, heap and direct buffers and Latin-1 bytes are read in place
+  String literals = "'Carriage''Text'";
+  CharBuffer direct = ByteBuffer.allocateDirect(literals.length() * 2).asCharBuffer().put(literals).flip();
+  for (CharSequence text : List.of(new StringBuilder(literals), CharBuffer.wrap(literals.toCharArray()), direct,
+          Input.latin1(literals.getBytes(StandardCharsets.ISO_8859_1)))) {
+      Result<List<String>> result = Parser.oneOrMore(wordLiteral).parse(new Source(0, text));
+      if (!result.getValue().equals(Optional.of(List.of("Carriage", "Text"))) || result.getSource().offset() != 16) {
+          throw new AssertionError("failed: %s input parsed to %s".formatted(text.getClass(), result));
+      }
+  }
+
+  // memory-mapped UTF-8: ASCII tokens match on the bytes, other code points decode where they are read
+  try {
+      Path file = Files.createTempFile("carriage", ".txt");
+      Files.writeString(file, "'Grüße''Text'\n'Carriage'\n");
+      try (MappedFile mapped = MappedFile.open(file)) {
+          Cursor utf8 = new Cursor(mapped.input(), 0);
+          if (!Parser.oneOrMore(wordLiteral).parse(utf8) || utf8.offset != 15 || !utf8.value.equals(List.of("Grüße", "Text"))) {
+              throw new AssertionError("failed: mapped parse ended at %d with %s".formatted(utf8.offset, utf8.value));
+          }
+          if (mapped.windows(20).size() != 2) {
+              throw new AssertionError("failed: mapped file did not split on its line break");
+          }
+      } finally {
+          Files.delete(file);
+      }
+  } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+  }
+
   System.out.println("done");
 }
 
@@ -225,92 +1070,77 @@ void main() {
 interface Parser<T> {
     Result<T> parse(Source source);
 
-    default <U> Parser<U> and(Parser<U> other) {
-        return source -> {
-            Result<T> left = parse(source);
-            return switch(left) {
-                case Result.Value<T> _ -> {
-                    Result<U> right = other.parse(left.getSource());
-                    yield switch(right) {
-                        case Result.Value<U> v -> v;
-                        case Result.Error<U> re -> Result.ofError(re.source, re.expected, re.actual);
-                    };
-                }
-                case Result.Error<T> e -> Result.ofError(e);
-            };
+    /// Cursor mode. On success advances `cursor.offset` past the match and stores the value in `cursor.value`;
+    /// on failure leaves `cursor.offset` at the failure position and records what was expected.
+    ///
+    /// Parsers written as `Source` lambdas are adapted here; the built-in parsers and combinators implement
+    /// [CursorParser] instead, so they run without allocating a `Source` or `Result` per step.
+    default boolean parse(Cursor cursor) {
+        Result<T> result = parse(new Source(cursor.offset, cursor.input.text()));
+        cursor.offset = result.getSource().offset();
+        // nothing is known about what the lambda read
+        cursor.examine(cursor.input.length() + 1);
+        return switch(result) {
+            case Result.Value<T> v -> {
+                cursor.value = v.value();
+                yield true;
+            }
+            case Result.Error<T> e -> cursor.fail(Expectation.of(e.expected(), e.actual()));
         };
     }
 
-    default <U> Parser<Either<T, U>> or(Parser<U> other) {
-        return source -> {
-            Result<T> left = parse(source);
-            return switch(left) {
-                case Result.Value<T> v -> Result.ofValue(left.getSource(), Either.ofLeft(v.value));
-                case Result.Error<T> _ -> {
-                    Result<U> right = other.parse(source);
-                    yield switch(right) {
-                        case Result.Value<U> v -> Result.ofValue(right.getSource(), Either.ofRight(v.value));
-                        case Result.Error<U> re -> Result.ofError(re.source, re.expected, re.actual);
-                    };
-                }
-            };
-        };
+    default <U> Parser<U> and(Parser<U> other) {
+        return new AndParser<>(this, other);
+    }
+
+    default <U> Parser<Either<T, U>> or(Parser<U> other) {
+        return new OrParser<>(this, other);
     }
 
     default <U> Parser<U> map(Function<Result<T>, Parser<U>> func) {
-        return source -> switch(parse(source)) {
-            case Result.Value<T> v -> func.apply(v).parse(v.source);
-            case Result.Error<T> e -> Result.ofError(e);
-        };
+        return new MapParser<>(this, func);
     }
 
     static <T> Parser<List<T>> zeroOrMore(Parser<T> parser) {
-        return source -> {
-            List<T> results = new ArrayList<>();
-            Source nextSource = source;
-            boolean stop = false;
-            while (!stop) {
-                Result<T> result = parser.parse(nextSource);
-                switch(result) {
-                    case Result.Value<T> v -> results.add(v.value);
-                    case Result.Error<T> _ -> stop = true;
-                }
-
-                nextSource = result.getSource();
-            }
-            return Result.ofValue(nextSource, results);
-        };
+        return new RepeatParser<>(parser, 0);
     }
 
     static <T> Parser<List<T>> oneOrMore(Parser<T> parser) {
-        return source -> {
-            List<T> results = new ArrayList<>();
-            Source nextSource = source;
+        return new RepeatParser<>(parser, 1);
+    }
 
-            // require first occurrence
-            Result<T> result = parser.parse(nextSource);
-            if (result instanceof Result.Value<T> v) {
-                results.add(v.value);
-            } else if (result instanceof Result.Error<T> e) {
-                return Result.ofError(e);
-            }
+    /// Runs `parser` and, if it matches, commits: a later failure fails every enclosing choice and
+    /// repetition instead of letting it backtrack to an alternative. For example, after the `g` of a Go
+    /// command no other command can match, so a bad target is reported as such.
+    static <T> Parser<T> commit(Parser<T> parser) {
+        return new CommitParser<>(parser);
+    }
 
-            // advance past first occurrence
-            nextSource = result.getSource();
+    /// Folds zero or more items into one value, starting from `initial.get()`. Items are not kept, so the
+    /// repetition runs in constant memory however long it is.
+    static <T, A> Parser<A> foldMany(Parser<T> parser, Supplier<A> initial, BiFunction<A, ? super T, A> step) {
+        return new FoldParser<>(parser, initial, step);
+    }
 
-            // parse remaining occurrences (or none)
-            boolean stop = false;
-            while (!stop) {
-                result = parser.parse(nextSource);
-                switch(result) {
-                    case Result.Value<T> v -> results.add(v.value);
-                    case Result.Error<T> _ -> stop = true;
-                }
+    /// Skips zero or more items; the value is how many were skipped.
+    static <T> IntParser skipMany(Parser<T> parser) {
+        return new ForEachParser<>(parser, item -> {
+        });
+    }
 
-                nextSource = result.getSource();
-            }
-            return Result.ofValue(nextSource, results);
-        };
+    /// Passes each of zero or more items to `consumer` as soon as it is parsed; the value is how many.
+    static <T> IntParser forEach(Parser<T> parser, Consumer<? super T> consumer) {
+        return new ForEachParser<>(parser, consumer);
+    }
+
+    /// Like [#zeroOrMore(Parser)], but splits the input into chunks of about `chunkSize` chars at `boundary`
+    /// and parses them on the common fork/join pool.
+    static <T> Parser<List<T>> parallelZeroOrMore(Parser<T> parser, Boundary boundary, int chunkSize) {
+        return new ParallelRepeatParser<>(parser, 0, boundary, chunkSize, ForkJoinPool.commonPool());
+    }
+
+    static <T> Parser<List<T>> parallelOneOrMore(Parser<T> parser, Boundary boundary, int chunkSize) {
+        return new ParallelRepeatParser<>(parser, 1, boundary, chunkSize, ForkJoinPool.commonPool());
     }
 
     static <T> ValueParser<T> value(T value) {
@@ -329,12 +1159,357 @@ interface Parser<T> {
         return new WordParser();
     }
 
+    /// One code point of `chars`; `expectation` is recorded when the next one is not.
+    static CharParser charIn(CharClass chars, Expectation expectation) {
+        return new CharParser(chars, expectation);
+    }
+
+    /// A run of one or more chars of `chars`, like [#word()] for other classes.
+    static SpanParser span(CharClass chars, Expectation expectation) {
+        return new SpanParser(chars, expectation);
+    }
+
     static NumberParser num() {
         return new NumberParser();
     }
+
+    static LongNumberParser longNum() {
+        return new LongNumberParser();
+    }
+
+    /// Wraps `parser` as a memoized rule. Rule ids must be non-negative and unique within a grammar;
+    /// results are only memoized while a [#packrat(Parser)] parse is running.
+    static <T> MemoParser<T> memo(int ruleId, Parser<T> parser) {
+        return new MemoParser<>(ruleId, parser);
+    }
+
+    /// Runs `parser` in packrat mode: every [#memo(int, Parser)] rule reached during the parse shares
+    /// one memo table, so a rule is evaluated at most once per offset.
+    static <T> Parser<T> packrat(Parser<T> parser) {
+        return new PackratParser<>(parser);
+    }
+
+    /// Caches the results of the `capacity` most recently used inputs parsed with `parser`, see [ParseCache].
+    static <T> ParseCache<T> cache(Parser<T> parser, int capacity) {
+        return new ParseCache<>(parser, capacity);
+    }
+
+    /// Compiles the combinator tree of `grammar` into a single method handle tree, see [GrammarCompiler].
+    static <T> Parser<T> compile(Parser<T> grammar) {
+        return GrammarCompiler.compile(grammar);
+    }
+}
+
+/// A [Parser] implemented natively in cursor mode; `parse(Source)` is a thin adapter over it.
+interface CursorParser<T> extends Parser<T> {
+
+    @Override
+    boolean parse(Cursor cursor);
+
+    @Override
+    default Result<T> parse(Source source) {
+        return Cursor.parse(this, source);
+    }
+}
+
+/// A parser of `int` values. `parseInt` leaves the value unboxed in `cursor.intValue`; it is only boxed when
+/// the parser is composed with reference parsers through `parse`.
+interface IntParser extends CursorParser<Integer> {
+
+    boolean parseInt(Cursor cursor);
+
+    @Override
+    default boolean parse(Cursor cursor) {
+        if (!parseInt(cursor)) {
+            return false;
+        }
+        cursor.value = cursor.intValue;
+        return true;
+    }
+
+    default IntParser mapInt(IntUnaryOperator func) {
+        return cursor -> {
+            if (!parseInt(cursor)) {
+                return false;
+            }
+            cursor.intValue = func.applyAsInt(cursor.intValue);
+            return true;
+        };
+    }
+
+    default <U> Parser<U> bindInt(IntFunction<Parser<U>> func) {
+        return (CursorParser<U>) cursor -> parseInt(cursor) && func.apply(cursor.intValue).parse(cursor);
+    }
+}
+
+/// A parser of `long` values, see [IntParser].
+interface LongParser extends CursorParser<Long> {
+
+    boolean parseLong(Cursor cursor);
+
+    @Override
+    default boolean parse(Cursor cursor) {
+        if (!parseLong(cursor)) {
+            return false;
+        }
+        cursor.value = cursor.longValue;
+        return true;
+    }
+
+    default LongParser mapLong(LongUnaryOperator func) {
+        return cursor -> {
+            if (!parseLong(cursor)) {
+                return false;
+            }
+            cursor.longValue = func.applyAsLong(cursor.longValue);
+            return true;
+        };
+    }
+
+    default <U> Parser<U> bindLong(LongFunction<Parser<U>> func) {
+        return (CursorParser<U>) cursor -> parseLong(cursor) && func.apply(cursor.longValue).parse(cursor);
+    }
+}
+
+/// Mutable parse state threaded through a whole parse, so steps pass an `int` offset instead of
+/// allocating a new [Source] and [Result] each.
+static final class Cursor {
+
+    // per thread: the runs in progress, so nested ones can be told apart
+    private static final ThreadLocal<int[]> RUNS = ThreadLocal.withInitial(() -> new int[1]);
+
+    Input input;
+    int offset;
+
+    // value of the last successful step; primitive parsers leave theirs unboxed
+    Object value;
+    int intValue;
+    long longValue;
+
+    // what the last failed step expected
+    Expectation failure;
+
+    static final Expectation[] NO_EXPECTATIONS = {};
+
+    // furthest offset any step failed at, and the distinct expectations that failed there
+    int furthest = -1;
+    Expectation[] expectations = new Expectation[4];
+    int expectationCount;
+
+    // exclusive end of the input read so far; `length + 1` once the end of input has been seen
+    int examined;
+
+    // a commit succeeded since the innermost enclosing choice started its current alternative
+    boolean committed;
+
+    MemoTable memo;
+    // an idle table a [PackratParser] uses instead of allocating one, e.g. on a pooled cursor
+    MemoTable spare;
+
+    Cursor(CharSequence text) {
+        this(Input.of(text), 0);
+    }
+
+    Cursor(Input input, int offset) {
+        this.input = input;
+        this.offset = offset;
+    }
+
+    /// Prepares this cursor for a new parse of `input`, keeping its buffers and clearing its memo table.
+    void reset(Input input, int offset) {
+        this.input = input;
+        this.offset = offset;
+        value = null;
+        failure = null;
+        furthest = -1;
+        Arrays.fill(expectations, 0, expectationCount, null);
+        expectationCount = 0;
+        examined = 0;
+        committed = false;
+        if (memo != null) {
+            memo.clear();
+        }
+    }
+
+    /// Commits to the parse so far: no enclosing choice backtracks before the current offset, so memo
+    /// entries that start before it can be dropped.
+    void commit() {
+        committed = true;
+        if (memo != null) {
+            memo.commit(offset);
+        }
+    }
+
+    /// Records that a step read the input up to (exclusive) `end`.
+    void examine(int end) {
+        if (end > examined) {
+            examined = end;
+        }
+    }
+
+    /// Records a failed step at the current offset. Only the furthest failures are kept, and they are
+    /// only rendered to text if the whole parse fails.
+    boolean fail(Expectation expectation) {
+        failure = expectation;
+        if (offset > furthest) {
+            furthest = offset;
+            expectationCount = 0;
+        }
+        if (offset == furthest) {
+            for (int i = 0; i < expectationCount; i++) {
+                if (expectations[i].equals(expectation)) {
+                    return false;
+                }
+            }
+            if (expectationCount == expectations.length) {
+                expectations = Arrays.copyOf(expectations, Math.max(4, expectationCount << 1));
+            }
+            expectations[expectationCount++] = expectation;
+        }
+        return false;
+    }
+
+    /// Renders the furthest failure, e.g. `token x or token y`.
+    String expected() {
+        StringJoiner joiner = new StringJoiner(" or ");
+        for (int i = 0; i < expectationCount; i++) {
+            joiner.add(expectations[i].expected());
+        }
+        return joiner.toString();
+    }
+
+    String actual() {
+        return expectationCount == 0 ? "" : expectations[0].actual();
+    }
+
+    /// Records that each of the first `count` of `failed` failed at `at`, keeping the last failed step.
+    void fail(int at, Expectation[] failed, int count) {
+        Expectation last = failure;
+        int saved = offset;
+        offset = at;
+        for (int i = 0; i < count; i++) {
+            fail(failed[i]);
+        }
+        offset = saved;
+        failure = last;
+    }
+
+    /// Takes over the read extent and failures of `other`, a cursor that parsed part of the same input.
+    void absorb(Cursor other) {
+        examine(other.examined);
+        fail(other.furthest, other.expectations, other.expectationCount);
+        failure = other.failure;
+    }
+
+    static <T> Result<T> parse(Parser<T> parser, Source source) {
+        Cursor cursor = new Cursor(Input.of(source.text()), source.offset());
+        // a Source lambda inside a packrat parse of the same text shares its memo table
+        cursor.memo = MemoTable.bound(source.text());
+        return cursor.run(parser);
+    }
+
+    /// Runs `parser` from the current offset as a top-level parse, recording a [ParseEvent] and, if the
+    /// cursor has a memo table, a [MemoTableEvent] for it. A nested run, e.g. from a Source lambda, is part
+    /// of the outer run and records neither.
+    <T> Result<T> run(Parser<T> parser) {
+        int[] depth = RUNS.get();
+        boolean matched;
+        if (depth[0] > 0) {
+            depth[0]++;
+            try {
+                matched = parser.parse(this);
+            } finally {
+                depth[0]--;
+            }
+            return result(matched);
+        }
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        depth[0] = 1;
+        try {
+            matched = parser.parse(this);
+        } finally {
+            depth[0] = 0;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.inputLength = input.length();
+            event.success = matched;
+            event.offset = matched ? offset : Math.max(furthest, offset);
+            event.commit();
+        }
+        if (memo != null) {
+            memo.record();
+        }
+        return result(matched);
+    }
+
+    /// Converts the outcome of a parse run on this cursor into a [Result].
+    @SuppressWarnings("unchecked")
+    <T> Result<T> result(boolean matched) {
+        if (matched) {
+            return Result.ofValue(new Source(offset, input.text()), (T) value);
+        }
+        // report the furthest failure rather than where backtracking gave up
+        return Result.ofError(new Source(Math.max(furthest, offset), input.text()), expected(), actual());
+    }
+}
+
+/// Description of what a step expected. Failing steps only point at one of these, held by the step itself;
+/// the text is rendered when a failed parse is reported.
+static final class Expectation {
+
+    static final Expectation ANY_CHARACTER = new Expectation("any character", "end of string", null);
+    static final Expectation WORD = new Expectation("word character", "empty", null);
+    static final Expectation NUMBER = new Expectation("number", "empty", null);
+    static final Expectation INT_RANGE = new Expectation("number within int range", "number out of range", null);
+    static final Expectation LONG_RANGE = new Expectation("number within long range", "number out of range", null);
+    static final Expectation GO_TARGET = new Expectation("go target", "not a go target", null);
+    static final Expectation LITERAL = new Expectation("literal text", "empty literal", null);
+    static final Expectation BLANK = new Expectation("blank space", "not blank space", null);
+    static final Expectation COMMENT = new Expectation("comment text", "end of line", null);
+
+    private final String expected;
+    private final String actual;
+    // appended to both descriptions, e.g. the token
+    private final String subject;
+
+    private Expectation(String expected, String actual, String subject) {
+        this.expected = expected;
+        this.actual = actual;
+        this.subject = subject;
+    }
+
+    static Expectation token(String token) {
+        return new Expectation("token", "not the token", token);
+    }
+
+    static Expectation of(String expected, String actual) {
+        return new Expectation(expected, actual, null);
+    }
+
+    String expected() {
+        return subject == null ? expected : expected + " " + subject;
+    }
+
+    String actual() {
+        return subject == null ? actual : actual + " " + subject;
+    }
+
+    // equal expectations of different steps, e.g. two parsers of the same token, are reported once
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof Expectation e
+                && expected.equals(e.expected) && actual.equals(e.actual) && Objects.equals(subject, e.subject);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(expected, actual, subject);
+    }
 }
 
-static class ValueParser<T> implements Parser<T> {
+static class ValueParser<T> implements CursorParser<T> {
 
     private final T value;
 
@@ -343,93 +1518,2632 @@ static class ValueParser<T> implements Parser<T> {
     }
 
     @Override
-    public Result<T> parse(Source source) {
-        return Result.ofValue(source, value);
+    public boolean parse(Cursor cursor) {
+        cursor.value = value;
+        return true;
     }
 }
 
-static class TokenParser implements Parser<String> {
+static class TokenParser implements CursorParser<String> {
 
     private final String token;
+    private final Expectation expectation;
 
     TokenParser(String token) {
         this.token = token;
+        this.expectation = Expectation.token(token);
     }
 
     @Override
-    public Result<String> parse(Source source) {
-        return source.text.startsWith(token, source.offset) ?
-                Result.ofValue(new Source(source.offset + token.length(), source.text), token) :
-                Result.ofError(source, "token " + token, "not the token " + token);
+    public boolean parse(Cursor cursor) {
+        cursor.examine(cursor.offset + token.length());
+        if (cursor.input.startsWith(token, cursor.offset)) {
+            cursor.offset += token.length();
+            cursor.value = token;
+            return true;
+        }
+        return cursor.fail(expectation);
     }
 }
 
-static class AnyCharParser implements Parser<String> {
+static class AnyCharParser implements CursorParser<String> {
+
+    // shared single character strings, so Latin-1 input does not allocate
+    private static final String[] LATIN1 = new String[256];
+
+    static {
+        for (int c = 0; c < LATIN1.length; c++) {
+            LATIN1[c] = Character.toString(c);
+        }
+    }
 
     @Override
-    public Result<String> parse(Source source) {
-        try {
-          int cp = source.text.codePointAt(source.offset);
-          return Result.ofValue(new Source(source.offset + 1, source.text), Character.toString(cp));
-        } catch (IndexOutOfBoundsException ex) {
-          return Result.ofError(source, "any character", "end of string");
+    public boolean parse(Cursor cursor) {
+        if (cursor.offset < 0 || cursor.offset >= cursor.input.length()) {
+            cursor.examine(cursor.offset + 1);
+            return cursor.fail(Expectation.ANY_CHARACTER);
         }
+        int cp = cursor.input.codePointAt(cursor.offset);
+        cursor.offset = cursor.input.nextIndex(cursor.offset);
+        cursor.examine(cursor.offset);
+        cursor.value = cp < LATIN1.length ? LATIN1[cp] : Character.toString(cp);
+        return true;
     }
 }
 
-static class WordParser implements Parser<String> {
+static class WordParser implements CursorParser<String> {
 
     @Override
-    public Result<String> parse(Source source) {
-        StringBuilder b = null;
-        for (int i = source.offset, l = source.text.length(); i < l; i++) {
-            int cp = source.text.codePointAt(i);
-            if (Character.isLetterOrDigit(cp)) {
-                if (b == null) {
-                    b = new StringBuilder();
-                }
-                b.append(Character.toString(cp));
-            } else {
-                break;
-            }
+    public boolean parse(Cursor cursor) {
+        int start = cursor.offset;
+        int end = CharClass.LETTER_OR_DIGIT.scan(cursor.input, start);
+        // the scan stopped by reading the character at `end`
+        cursor.examine(end + 1);
+        if (end == start) {
+            // did not find a word
+            return cursor.fail(Expectation.WORD);
         }
+        // found a whole word
+        cursor.offset = end;
+        cursor.value = cursor.input.substring(start, end);
+        return true;
+    }
+}
 
-        if (b == null || b.isEmpty()) {
-            // did not find a number
-            return Result.ofError(source, "word character", "empty");
-        } else {
-            // found a whole number
-            String s = b.toString();
-            return Result.ofValue(new Source(source.offset + s.length(), source.text), s);
+static class CharParser implements CursorParser<String> {
+
+    private final CharClass chars;
+    private final Expectation expectation;
+
+    CharParser(CharClass chars, Expectation expectation) {
+        this.chars = chars;
+        this.expectation = expectation;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        if (cursor.offset < 0 || cursor.offset >= cursor.input.length()) {
+            cursor.examine(cursor.offset + 1);
+            return cursor.fail(expectation);
+        }
+        int cp = cursor.input.codePointAt(cursor.offset);
+        int next = cursor.input.nextIndex(cursor.offset);
+        cursor.examine(next);
+        if (!chars.contains(cp)) {
+            return cursor.fail(expectation);
         }
+        cursor.offset = next;
+        cursor.value = Character.toString(cp);
+        return true;
     }
 }
 
-static class NumberParser implements Parser<Integer> {
+static class SpanParser implements CursorParser<String> {
 
-    public Result<Integer> parse(Source source) {
-      StringBuilder b = null;
-      for (int i = source.offset, l = source.text.length(); i < l; i++) {
-        int cp = source.text.codePointAt(i);
-        if (Character.isDigit(cp)) {
-          if (b == null) {
-            b = new StringBuilder();
-          }
-          b.append(Integer.parseInt(Character.toString(cp)));
+    private final CharClass chars;
+    private final Expectation expectation;
+
+    SpanParser(CharClass chars, Expectation expectation) {
+        this.chars = chars;
+        this.expectation = expectation;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        int start = cursor.offset;
+        int end = chars.scan(cursor.input, start);
+        // the scan stopped by reading the character at `end`
+        cursor.examine(end + 1);
+        if (end == start) {
+            return cursor.fail(expectation);
+        }
+        cursor.offset = end;
+        cursor.value = cursor.input.substring(start, end);
+        return true;
+    }
+}
+
+static class NumberParser implements IntParser {
+
+    @Override
+    public boolean parseInt(Cursor cursor) {
+      int start = cursor.offset;
+      int end = CharClass.DIGIT.scan(cursor.input, start);
+      cursor.examine(end + 1);
+      if (end == start) {
+        // did not find a number
+        return cursor.fail(Expectation.NUMBER);
+      }
+
+      // found a whole number
+      long n = accumulate(cursor.input, start, end, Integer.MAX_VALUE);
+      if (n < 0) {
+        return cursor.fail(Expectation.INT_RANGE);
+      }
+      cursor.offset = end;
+      cursor.intValue = (int) n;
+      return true;
+    }
+
+    /// Returns the value of the digits in `[start, end)`, or `-1` if it is greater than `max`.
+    static long accumulate(Input text, int start, int end, long max) {
+      long n = 0;
+      for (int i = start; i < end; ) {
+        char c = text.charAt(i);
+        int digit;
+        if (c < 0x80) {
+          digit = c - '0';
+          i++;
         } else {
-          break;
+          digit = Character.digit(text.codePointAt(i), 10);
+          i = text.nextIndex(i);
+        }
+        if (n > (max - digit) / 10) {
+          return -1;
         }
+        n = n * 10 + digit;
       }
+      return n;
+    }
+}
 
-      if (b == null || b.isEmpty()) {
+static class LongNumberParser implements LongParser {
+
+    @Override
+    public boolean parseLong(Cursor cursor) {
+      int start = cursor.offset;
+      int end = CharClass.DIGIT.scan(cursor.input, start);
+      cursor.examine(end + 1);
+      if (end == start) {
         // did not find a number
-        return Result.ofError(source, "number", "empty");
-      } else {
-        // found a whole number
-        String s = b.toString();
-        return Result.ofValue(
-            new Source(source.offset + s.length(), source.text),
-            Integer.parseInt(s));
+        return cursor.fail(Expectation.NUMBER);
+      }
+
+      // found a whole number
+      long n = NumberParser.accumulate(cursor.input, start, end, Long.MAX_VALUE);
+      if (n < 0) {
+        return cursor.fail(Expectation.LONG_RANGE);
       }
+      cursor.offset = end;
+      cursor.longValue = n;
+      return true;
+    }
+}
+
+/// A set of code points with a precomputed Latin-1 bitset; the Unicode predicate only runs for code points
+/// above `0xFF`.
+static final class CharClass {
+
+    static final CharClass LETTER_OR_DIGIT = new CharClass(Character::isLetterOrDigit);
+    static final CharClass DIGIT = new CharClass(Character::isDigit);
+
+    private final long[] latin1 = new long[4];
+    private final IntPredicate unicode;
+
+    CharClass(IntPredicate unicode) {
+        this.unicode = unicode;
+        for (int c = 0; c < 256; c++) {
+            if (unicode.test(c)) {
+                latin1[c >>> 6] |= 1L << c;
+            }
+        }
+    }
+
+    boolean contains(int cp) {
+        return cp < 256 ? (latin1[cp >>> 6] & (1L << cp)) != 0 : unicode.test(cp);
+    }
+
+    /// Returns the end offset of the run of members starting at `from`, `from` itself if there is none.
+    int scan(Input text, int from) {
+        int i = from;
+        for (int l = text.length(); i < l; ) {
+            char c = text.charAt(i);
+            if (c < 256) {
+                if ((latin1[c >>> 6] & (1L << c)) == 0) {
+                    break;
+                }
+                i++;
+            } else {
+                if (!unicode.test(text.codePointAt(i))) {
+                    break;
+                }
+                i = text.nextIndex(i);
+            }
+        }
+        return i;
+    }
+}
+
+static class AndParser<T, U> implements CursorParser<U> {
+
+    private final Parser<T> left;
+    private final Parser<U> right;
+
+    AndParser(Parser<T> left, Parser<U> right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        return left.parse(cursor) && right.parse(cursor);
+    }
+}
+
+static class OrParser<T, U> implements CursorParser<Either<T, U>> {
+
+    private final Parser<T> left;
+    private final Parser<U> right;
+
+    OrParser(Parser<T> left, Parser<U> right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        boolean committed = cursor.committed;
+        cursor.committed = false;
+        int start = cursor.offset;
+        if (left.parse(cursor)) {
+            cursor.value = Either.ofLeft(cursor.value);
+            cursor.committed |= committed;
+            return true;
+        }
+
+        // backtrack and try the alternative, unless the left one committed
+        if (!cursor.committed) {
+            cursor.offset = start;
+            if (right.parse(cursor)) {
+                cursor.value = Either.ofRight(cursor.value);
+                cursor.committed |= committed;
+                return true;
+            }
+        }
+        cursor.committed |= committed;
+        return false;
+    }
+}
+
+static class CommitParser<T> implements CursorParser<T> {
+
+    private final Parser<T> parser;
+
+    CommitParser(Parser<T> parser) {
+        this.parser = parser;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        if (!parser.parse(cursor)) {
+            return false;
+        }
+        cursor.commit();
+        return true;
+    }
+}
+
+static class MapParser<T, U> implements CursorParser<U> {
+
+    private final Parser<T> parser;
+    private final Function<Result<T>, Parser<U>> func;
+
+    MapParser(Parser<T> parser, Function<Result<T>, Parser<U>> func) {
+        this.parser = parser;
+        this.func = func;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        return parser.parse(cursor) && apply(cursor);
+    }
+
+    /// Continues with the parser `func` returns for the value `parser` just produced.
+    @SuppressWarnings("unchecked")
+    boolean apply(Cursor cursor) {
+        return func.apply(Result.ofValue(new Source(cursor.offset, cursor.input.text()), (T) cursor.value)).parse(cursor);
+    }
+}
+
+static class RepeatParser<T> implements CursorParser<List<T>> {
+
+    private final Parser<T> parser;
+    private final int min;
+
+    RepeatParser(Parser<T> parser, int min) {
+        this.parser = parser;
+        this.min = min;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        Items<T> items = new Items<>(cursor);
+        while (items.add(parser.parse(cursor), cursor)) {
+        }
+        return items.end(min, cursor);
     }
-}
\ No newline at end of file
+
+    /// The items of one repetition. Both the loop above and a compiled one, see [GrammarCompiler], call
+    /// `add` after each attempt and `end` after the first one that fails.
+    static final class Items<T> {
+
+        private final List<T> results = new ArrayList<>();
+        private boolean committed;
+
+        Items(Cursor cursor) {
+            committed = cursor.committed;
+            cursor.committed = false;
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean add(boolean matched, Cursor cursor) {
+            if (!matched) {
+                return false;
+            }
+            committed |= cursor.committed;
+            results.add((T) cursor.value);
+            cursor.committed = false;
+            return true;
+        }
+
+        boolean end(int min, Cursor cursor) {
+            if (cursor.committed) {
+                // the failed item had committed
+                return false;
+            }
+            cursor.committed = committed;
+            if (results.size() < min) {
+                return false;
+            }
+
+            // the cursor is left where the last attempt stopped
+            cursor.value = results;
+            return true;
+        }
+    }
+}
+
+/// Zero or more items folded into an accumulator. The cursor is left after the last item, and an item
+/// that matches without consuming input ends the repetition.
+static class FoldParser<T, A> implements CursorParser<A> {
+
+    private final Parser<T> parser;
+    private final Supplier<A> initial;
+    private final BiFunction<A, ? super T, A> step;
+
+    FoldParser(Parser<T> parser, Supplier<A> initial, BiFunction<A, ? super T, A> step) {
+        this.parser = parser;
+        this.initial = initial;
+        this.step = step;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        Accumulation<T, A> accumulation = new Accumulation<>(this, cursor);
+        while (accumulation.add(parser.parse(cursor), cursor)) {
+        }
+        return accumulation.end(cursor);
+    }
+
+    /// One run of the fold, driven like [RepeatParser.Items].
+    static final class Accumulation<T, A> {
+
+        private final BiFunction<A, ? super T, A> step;
+        private A accumulator;
+        private int end;
+        private boolean committed;
+        // the last item failed after committing
+        private boolean failed;
+
+        Accumulation(FoldParser<T, A> fold, Cursor cursor) {
+            step = fold.step;
+            accumulator = fold.initial.get();
+            end = cursor.offset;
+            committed = cursor.committed;
+            cursor.committed = false;
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean add(boolean matched, Cursor cursor) {
+            if (!matched) {
+                failed = cursor.committed;
+                return false;
+            }
+            committed |= cursor.committed;
+            accumulator = step.apply(accumulator, (T) cursor.value);
+            if (cursor.offset == end) {
+                return false;
+            }
+            end = cursor.offset;
+            cursor.committed = false;
+            return true;
+        }
+
+        boolean end(Cursor cursor) {
+            if (failed) {
+                return false;
+            }
+            cursor.committed = committed;
+            cursor.offset = end;
+            cursor.value = accumulator;
+            return true;
+        }
+    }
+}
+
+/// Zero or more items, each passed to a consumer; the count is the unboxed value. The cursor is left after
+/// the last item, and an item that matches without consuming input ends the repetition.
+static class ForEachParser<T> implements IntParser {
+
+    private final Parser<T> parser;
+    private final Consumer<? super T> consumer;
+
+    ForEachParser(Parser<T> parser, Consumer<? super T> consumer) {
+        this.parser = parser;
+        this.consumer = consumer;
+    }
+
+    @Override
+    public boolean parseInt(Cursor cursor) {
+        Forwarding<T> forwarding = new Forwarding<>(consumer, cursor);
+        while (forwarding.add(parser.parse(cursor), cursor)) {
+        }
+        return forwarding.end(cursor);
+    }
+
+    /// One run of the repetition, driven like [RepeatParser.Items].
+    static final class Forwarding<T> {
+
+        private final Consumer<? super T> consumer;
+        private int count;
+        private int end;
+        private boolean committed;
+        // the last item failed after committing
+        private boolean failed;
+
+        Forwarding(Consumer<? super T> consumer, Cursor cursor) {
+            this.consumer = consumer;
+            end = cursor.offset;
+            committed = cursor.committed;
+            cursor.committed = false;
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean add(boolean matched, Cursor cursor) {
+            if (!matched) {
+                failed = cursor.committed;
+                return false;
+            }
+            committed |= cursor.committed;
+            consumer.accept((T) cursor.value);
+            count++;
+            if (cursor.offset == end) {
+                return false;
+            }
+            end = cursor.offset;
+            cursor.committed = false;
+            return true;
+        }
+
+        boolean end(Cursor cursor) {
+            if (failed) {
+                return false;
+            }
+            cursor.committed = committed;
+            cursor.offset = end;
+            cursor.intValue = count;
+            return true;
+        }
+    }
+}
+
+/// Finds offsets where a repetition can be split: an item must start exactly at each one.
+@FunctionalInterface
+interface Boundary {
+
+    /// Returns the first safe offset at or after `from`, or `input.length()` if there is none.
+    int next(Input input, int from);
+
+    /// Splits just after each occurrence of `delimiter`, e.g. `after("\n")` for newline-delimited records.
+    static Boundary after(String delimiter) {
+        return (input, from) -> {
+            for (int i = Math.max(from - delimiter.length(), 0), l = input.length(); i < l; i++) {
+                if (input.startsWith(delimiter, i) && i + delimiter.length() >= from) {
+                    return i + delimiter.length();
+                }
+            }
+            return input.length();
+        };
+    }
+}
+
+/// Repetition over independently parseable items. Chunks between safe [Boundary] offsets are parsed in
+/// parallel, each on its own cursor, and stitched together in order. A chunk counts only if its items end
+/// exactly at the next boundary; otherwise parsing continues sequentially from where that chunk stopped,
+/// so the result is always the same as [RepeatParser]'s.
+static class ParallelRepeatParser<T> implements CursorParser<List<T>> {
+
+    private final Parser<T> parser;
+    private final int min;
+    private final Boundary boundary;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    ParallelRepeatParser(Parser<T> parser, int min, Boundary boundary, int chunkSize, ForkJoinPool pool) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        }
+        this.parser = parser;
+        this.min = min;
+        this.boundary = boundary;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    private record Chunk<T>(Cursor cursor, List<T> items, Stop stop) {
+    }
+
+    /// Why [#repeat] returned.
+    private enum Stop {
+        LIMIT, FAILED, COMMITTED
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        int length = cursor.input.length();
+        List<Integer> splits = new ArrayList<>();
+        for (int at = cursor.offset; ; ) {
+            int next = at + chunkSize >= length ? length : boundary.next(cursor.input, at + chunkSize);
+            if (next <= at || next >= length) {
+                break;
+            }
+            splits.add(next);
+            at = next;
+        }
+
+        List<T> results = new ArrayList<>();
+        Stop stop = splits.isEmpty()
+                ? repeat(cursor, results, Integer.MAX_VALUE)
+                : parseChunks(cursor, splits, results);
+        if (stop == Stop.COMMITTED || results.size() < min) {
+            return false;
+        }
+        cursor.value = results;
+        return true;
+    }
+
+    private Stop parseChunks(Cursor cursor, List<Integer> splits, List<T> results) {
+        boolean packrat = cursor.memo != null;
+        List<ForkJoinTask<Chunk<T>>> tasks = new ArrayList<>();
+        for (int i = 0; i <= splits.size(); i++) {
+            int from = i == 0 ? cursor.offset : splits.get(i - 1);
+            int limit = i == splits.size() ? Integer.MAX_VALUE : splits.get(i);
+            tasks.add(pool.submit(() -> {
+                Cursor chunk = new Cursor(cursor.input, from);
+                // memo tables are not shared between threads
+                chunk.memo = packrat ? new MemoTable() : null;
+                MemoTable.Binding previous = MemoTable.bind(chunk.memo, cursor.input.text());
+                try {
+                    List<T> items = new ArrayList<>();
+                    return new Chunk<>(chunk, items, repeat(chunk, items, limit));
+                } finally {
+                    MemoTable.restore(previous);
+                }
+            }));
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            Chunk<T> chunk = tasks.get(i).join();
+            results.addAll(chunk.items());
+            cursor.absorb(chunk.cursor());
+            cursor.offset = chunk.cursor().offset;
+            cursor.committed |= chunk.cursor().committed;
+            Stop stop = chunk.stop();
+            boolean last = i == splits.size();
+            if (last || stop != Stop.LIMIT || chunk.cursor().offset != splits.get(i)) {
+                if (!last && stop == Stop.LIMIT) {
+                    // an item ran past the boundary, so the following chunks started mid-item
+                    stop = repeat(cursor, results, Integer.MAX_VALUE);
+                }
+                for (int j = i + 1; j < tasks.size(); j++) {
+                    tasks.get(j).cancel(false);
+                }
+                return stop;
+            }
+        }
+        throw new AssertionError("the last chunk always stops");
+    }
+
+    /// Parses items until one fails or the cursor reaches `limit`. Each item is a choice point, so
+    /// `cursor.committed` ends up set if any matched item committed.
+    @SuppressWarnings("unchecked")
+    private Stop repeat(Cursor cursor, List<T> results, int limit) {
+        boolean committed = cursor.committed;
+        while (cursor.offset < limit) {
+            cursor.committed = false;
+            if (!parser.parse(cursor)) {
+                if (cursor.committed) {
+                    return Stop.COMMITTED;
+                }
+                cursor.committed = committed;
+                return Stop.FAILED;
+            }
+            committed |= cursor.committed;
+            results.add((T) cursor.value);
+        }
+        cursor.committed = committed;
+        return Stop.LIMIT;
+    }
+}
+
+static class PackratParser<T> implements CursorParser<T> {
+
+    private final Parser<T> parser;
+
+    PackratParser(Parser<T> parser) {
+        this.parser = parser;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        if (cursor.memo != null) {
+            // already in packrat mode, e.g. an incremental cursor brought its own table
+            return parser.parse(cursor);
+        }
+        MemoTable.Binding previous = begin(cursor);
+        try {
+            return parser.parse(cursor);
+        } finally {
+            end(previous, cursor);
+        }
+    }
+
+    /// Gives `cursor` a memo table; returns the thread's previous binding, for [#end].
+    static MemoTable.Binding begin(Cursor cursor) {
+        MemoTable table = cursor.spare;
+        cursor.spare = null;
+        if (table == null) {
+            table = new MemoTable();
+        }
+        // also bind to the thread, so Source lambdas that start their own cursors on this text share the table
+        MemoTable.Binding previous = MemoTable.bind(table, cursor.input.text());
+        cursor.memo = table;
+        return previous;
+    }
+
+    static void end(MemoTable.Binding previous, Cursor cursor) {
+        MemoTable table = cursor.memo;
+        cursor.memo = null;
+        MemoTable.restore(previous);
+        table.record();
+        table.clear();
+        cursor.spare = table;
+    }
+}
+
+static class MemoParser<T> implements CursorParser<T> {
+
+    private final int ruleId;
+    private final Parser<T> parser;
+
+    MemoParser(int ruleId, Parser<T> parser) {
+        if (ruleId < 0) {
+            throw new IllegalArgumentException("rule id must be non-negative: " + ruleId);
+        }
+        this.ruleId = ruleId;
+        this.parser = parser;
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        if (cursor.memo == null) {
+            // not in packrat mode
+            return parser.parse(cursor);
+        }
+        int slot = cursor.memo.find(ruleId, cursor.offset);
+        if (slot >= 0) {
+            return cursor.memo.replay(slot, cursor);
+        }
+        Evaluation evaluation = new Evaluation(ruleId, cursor);
+        return evaluation.end(parser.parse(cursor), cursor);
+    }
+
+    /// One evaluation of the rule on a memo miss: created before the rule runs and ended with its outcome,
+    /// by the method above or a compiled grammar, see [GrammarCompiler].
+    static final class Evaluation {
+
+        private final int ruleId;
+        private final int start;
+        // the enclosing parse's state, set aside
+        private final int examined;
+        private final int furthest;
+        private final Expectation[] expectations;
+        private final int expectationCount;
+        private final boolean committed;
+        // null unless the flight recorder is recording rules
+        private final RuleEvent event;
+
+        Evaluation(int ruleId, Cursor cursor) {
+            this.ruleId = ruleId;
+            start = cursor.offset;
+            // measure what this rule alone reads, so edits elsewhere can keep its entry, and where it alone
+            // failed furthest, so a replay, e.g. after an edit, reports the same failures as a fresh parse
+            examined = cursor.examined;
+            cursor.examined = start;
+            furthest = cursor.furthest;
+            expectations = cursor.expectations;
+            expectationCount = cursor.expectationCount;
+            cursor.furthest = -1;
+            cursor.expectations = Cursor.NO_EXPECTATIONS;
+            cursor.expectationCount = 0;
+            committed = cursor.committed;
+            cursor.committed = false;
+            if (RuleEvent.TYPE.isEnabled()) {
+                event = new RuleEvent();
+                event.begin();
+            } else {
+                event = null;
+            }
+        }
+
+        boolean end(boolean matched, Cursor cursor) {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.ruleId = ruleId;
+                    event.offset = start;
+                    event.success = matched;
+                    event.commit();
+                }
+            }
+            int ruleFurthest = cursor.furthest;
+            Expectation[] failed = cursor.expectationCount == 0
+                    ? Cursor.NO_EXPECTATIONS
+                    : Arrays.copyOf(cursor.expectations, cursor.expectationCount);
+            cursor.furthest = furthest;
+            cursor.expectations = expectations;
+            cursor.expectationCount = expectationCount;
+            cursor.fail(ruleFurthest, failed, failed.length);
+            // a replay could not restore the commit, so such results are not memoized
+            if (!cursor.committed) {
+                cursor.memo.store(ruleId, start, matched, cursor, ruleFurthest, failed);
+            }
+            cursor.committed |= committed;
+            cursor.examine(examined);
+            return matched;
+        }
+    }
+}
+
+/// Open-addressing (linear probing) table keyed by `(rule id, offset)` packed into a single `long`,
+/// so lookups never box a key or allocate a map entry.
+static final class MemoTable {
+
+    private static final ThreadLocal<Binding> BOUND = new ThreadLocal<>();
+
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    // end offset of a match, or `-1 - offset` of a failure
+    private int[] ends;
+    // value of a match, or the expectation of a failure
+    private Object[] values;
+    // exclusive end of the input the rule read
+    private int[] examined;
+    // where the rule failed furthest, and what failed there
+    private int[] furthests;
+    private Expectation[][] failures;
+    private int size;
+    // entries starting before this offset can no longer be reached, see [Cursor#commit()]
+    private int floor;
+    // lookups since the last [#record()]
+    private long hits;
+    private long misses;
+
+    MemoTable() {
+        this(64);
+    }
+
+    MemoTable(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1);
+    }
+
+    /// A table bound to a thread, with the text its offsets refer to.
+    record Binding(MemoTable table, CharSequence text) {
+    }
+
+    /// Returns the table bound to the current thread if it was bound for `text` itself, otherwise `null`.
+    static MemoTable bound(CharSequence text) {
+        Binding binding = BOUND.get();
+        return binding != null && binding.text() == text ? binding.table() : null;
+    }
+
+    /// Binds `table`, holding results for `text`, to the current thread and returns the previous binding.
+    static Binding bind(MemoTable table, CharSequence text) {
+        Binding previous = BOUND.get();
+        if (table == null) {
+            BOUND.remove();
+        } else {
+            BOUND.set(new Binding(table, text));
+        }
+        return previous;
+    }
+
+    static void restore(Binding previous) {
+        if (previous == null) {
+            BOUND.remove();
+        } else {
+            BOUND.set(previous);
+        }
+    }
+
+    static long key(int ruleId, int offset) {
+        return ((long) ruleId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /// Returns the slot holding `(ruleId, offset)`, or `-1` if it has not been parsed yet.
+    int find(int ruleId, int offset) {
+        long key = key(ruleId, offset);
+        int mask = keys.length - 1;
+        for (int i = hash(key, mask); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                hits++;
+                return i;
+            } else if (k == EMPTY) {
+                misses++;
+                return -1;
+            }
+        }
+    }
+
+    /// Restores the memoized outcome in `slot` onto `cursor`.
+    boolean replay(int slot, Cursor cursor) {
+        int end = ends[slot];
+        cursor.examine(examined[slot]);
+        cursor.fail(furthests[slot], failures[slot], failures[slot].length);
+        if (end >= 0) {
+            cursor.offset = end;
+            cursor.value = values[slot];
+            return true;
+        }
+        cursor.offset = -1 - end;
+        return cursor.fail((Expectation) values[slot]);
+    }
+
+    /// Records the outcome the cursor holds after parsing `ruleId` from `offset`, and the `failed`
+    /// expectations of the rule's own furthest failure at `furthest`.
+    void store(int ruleId, int offset, boolean matched, Cursor cursor, int furthest, Expectation[] failed) {
+        int i = insert(key(ruleId, offset));
+        furthests[i] = furthest;
+        failures[i] = failed;
+        if (matched) {
+            ends[i] = cursor.offset;
+            values[i] = cursor.value;
+        } else {
+            ends[i] = -1 - cursor.offset;
+            values[i] = cursor.failure;
+        }
+        examined[i] = cursor.examined;
+    }
+
+    /// Returns a table for the text after replacing `removed` chars at `offset` with `inserted` chars. Entries
+    /// that read only text before the edit are kept, entries starting after it are moved by the length
+    /// difference, and entries overlapping it are dropped. Every entry is copied, so this takes O(entries).
+    MemoTable edit(int offset, int removed, int inserted) {
+        MemoTable table = new MemoTable(size << 1);
+        int delta = inserted - removed;
+        for (int j = 0; j < keys.length; j++) {
+            long key = keys[j];
+            if (key == EMPTY) {
+                continue;
+            }
+            int start = (int) key;
+            int shift;
+            if (examined[j] <= offset) {
+                shift = 0;
+            } else if (start >= offset + removed) {
+                shift = delta;
+            } else {
+                continue;
+            }
+            int i = table.insert(key(ruleId(key), start + shift));
+            table.ends[i] = ends[j] >= 0 ? ends[j] + shift : ends[j] - shift;
+            table.values[i] = values[j];
+            table.examined[i] = examined[j] + shift;
+            table.furthests[i] = failures[j].length == 0 ? furthests[j] : furthests[j] + shift;
+            table.failures[i] = failures[j];
+        }
+        return table;
+    }
+
+    private static int ruleId(long key) {
+        return (int) (key >>> 32);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /// Commits a [MemoTableEvent] for the lookups since the last call and starts counting again.
+    void record() {
+        MemoTableEvent event = new MemoTableEvent();
+        if (event.isEnabled()) {
+            event.entries = size;
+            event.capacity = keys.length;
+            event.hits = hits;
+            event.misses = misses;
+            event.commit();
+        }
+        hits = 0;
+        misses = 0;
+    }
+
+    void clear() {
+        floor = 0;
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, null);
+        Arrays.fill(failures, null);
+        size = 0;
+    }
+
+    /// Lets entries that start before `offset` be dropped the next time the table fills up.
+    void commit(int offset) {
+        floor = Math.max(floor, offset);
+    }
+
+    private int insert(long key) {
+        // keep the load factor at or below 1/2, dropping unreachable entries before growing
+        if ((size + 1) << 1 > keys.length) {
+            if (floor > 0) {
+                resize(keys.length);
+            }
+            // grow unless that freed at least half the room, so drops stay amortized O(1)
+            if (size << 2 > keys.length) {
+                resize(keys.length << 1);
+            }
+        }
+        int mask = keys.length - 1;
+        for (int i = hash(key, mask); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return i;
+            } else if (k == EMPTY) {
+                keys[i] = key;
+                size++;
+                return i;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        ends = new int[capacity];
+        values = new Object[capacity];
+        examined = new int[capacity];
+        furthests = new int[capacity];
+        failures = new Expectation[capacity][];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldEnds = ends;
+        Object[] oldValues = values;
+        int[] oldExamined = examined;
+        int[] oldFurthests = furthests;
+        Expectation[][] oldFailures = failures;
+        allocate(capacity);
+        int mask = capacity - 1;
+        size = 0;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != EMPTY && (int) key >= floor) {
+                size++;
+                int i = hash(key, mask);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                ends[i] = oldEnds[j];
+                values[i] = oldValues[j];
+                examined[i] = oldExamined[j];
+                furthests[i] = oldFurthests[j];
+                failures[i] = oldFailures[j];
+            }
+        }
+    }
+}
+
+/// A parse that is brought up to date after an edit instead of being rerun: every [Parser#memo(int, Parser)]
+/// result that read only text outside the edited region is replayed rather than parsed again, so only the
+/// rules that read the edit run their bodies.
+///
+/// An edit still costs O(document): the edited text is rebuilt as a new String, [MemoTable#edit] copies
+/// every entry into a new table, and the grammar is walked from the start, so e.g. a top-level
+/// `zeroOrMore(memo(...))` replays each item's entry. What is saved is the rule evaluation outside the edit,
+/// which dominates for grammars whose memoized rules do real work per item.
+static final class IncrementalParse<T> {
+
+    record Edit(int offset, int removed, String inserted) {
+    }
+
+    private final Parser<T> parser;
+    private final String text;
+    private final MemoTable memo;
+    private final Result<T> result;
+
+    private IncrementalParse(Parser<T> parser, String text, MemoTable memo) {
+        this.parser = parser;
+        this.text = text;
+        this.memo = memo;
+
+        Cursor cursor = new Cursor(Input.of(text), 0);
+        cursor.memo = memo;
+        MemoTable.Binding previous = MemoTable.bind(memo, text);
+        try {
+            this.result = cursor.run(parser);
+        } finally {
+            MemoTable.restore(previous);
+        }
+    }
+
+    static <T> IncrementalParse<T> parse(Parser<T> parser, String text) {
+        return new IncrementalParse<>(parser, text, new MemoTable());
+    }
+
+    /// Reparses after replacing `edit.removed` chars at `edit.offset` with `edit.inserted`. This parse is
+    /// left unchanged.
+    IncrementalParse<T> edit(Edit edit) {
+        Objects.checkFromIndexSize(edit.offset(), edit.removed(), text.length());
+        String edited = text.substring(0, edit.offset()) + edit.inserted() + text.substring(edit.offset() + edit.removed());
+        return new IncrementalParse<>(parser, edited, memo.edit(edit.offset(), edit.removed(), edit.inserted().length()));
+    }
+
+    IncrementalParse<T> edit(int offset, int removed, String inserted) {
+        return edit(new Edit(offset, removed, inserted));
+    }
+
+    String text() {
+        return text;
+    }
+
+    Result<T> result() {
+        return result;
+    }
+}
+
+/// Parses many inputs with one grammar on virtual threads, running at most `concurrency` parses at a time.
+/// Cursors, and the memo tables of packrat grammars, are pooled and reused across parses rather than
+/// allocated per input.
+static final class BatchParser<T> implements AutoCloseable {
+
+    private final Parser<T> grammar;
+    private final Semaphore permits;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // idle cursors, each keeping a spare memo table once a packrat parse used one; never more than
+    // `concurrency` of them
+    private final Queue<Cursor> scratch = new ConcurrentLinkedQueue<>();
+
+    BatchParser(Parser<T> grammar, int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.grammar = grammar;
+        this.permits = new Semaphore(concurrency);
+    }
+
+    CompletableFuture<Result<T>> submit(CharSequence text) {
+        return CompletableFuture.supplyAsync(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                return parse(text);
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    /// Parses every input, passing each to `callback` with its result as it completes. Inputs are only pulled
+    /// from the stream while fewer than `concurrency` parses are running. The returned future completes once
+    /// all callbacks have run.
+    CompletableFuture<Void> submitAll(Stream<? extends CharSequence> inputs, BiConsumer<CharSequence, Result<T>> callback) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        // parses not yet finished, plus one for the stream until it is drained; nothing is kept per input
+        AtomicInteger outstanding = new AtomicInteger(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable finish = () -> {
+            if (outstanding.decrementAndGet() == 0) {
+                if (failure.get() == null) {
+                    done.complete(null);
+                } else {
+                    done.completeExceptionally(failure.get());
+                }
+            }
+        };
+        inputs.forEach(text -> {
+            permits.acquireUninterruptibly();
+            outstanding.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    callback.accept(text, parse(text));
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    permits.release();
+                    finish.run();
+                }
+            });
+        });
+        finish.run();
+        return done;
+    }
+
+    private Result<T> parse(CharSequence text) {
+        Cursor cursor = scratch.poll();
+        if (cursor == null) {
+            cursor = new Cursor(Input.of(text), 0);
+        } else {
+            cursor.reset(Input.of(text), 0);
+        }
+        try {
+            return cursor.run(grammar);
+        } finally {
+            scratch.offer(cursor);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
+
+/// A thread-safe cache of top-level parse results keyed by the text and start offset, evicting the least
+/// recently used entry beyond `capacity`. Only [String] texts are cached: they are immutable, so they key
+/// the cache as they are, and any equal String hits. Other [CharSequence]s, which may change or be costly to
+/// copy, such as builders, buffers and mapped files, are parsed directly. The values in cached results are
+/// shared between callers.
+///
+/// Two threads missing on the same text at once may both parse it; the later result replaces the earlier.
+static final class ParseCache<T> implements Parser<T> {
+
+    private record Key(String text, int offset) {
+    }
+
+    private final Parser<T> parser;
+    private final int capacity;
+    // guarded by itself
+    private final LinkedHashMap<Key, Result<T>> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ParseCache(Parser<T> parser, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.parser = parser;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result<T>> eldest) {
+                if (size() > ParseCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public Result<T> parse(Source source) {
+        if (!(source.text() instanceof String text)) {
+            return parser.parse(source);
+        }
+        Key key = new Key(text, source.offset());
+        Result<T> result;
+        synchronized (entries) {
+            result = entries.get(key);
+        }
+        if (result != null) {
+            hits.increment();
+            return result.getSource().text() == text ? result : rebase(result, text);
+        }
+
+        // parse outside the lock, so a slow input does not hold up the others
+        misses.increment();
+        result = parser.parse(source);
+        synchronized (entries) {
+            entries.put(key, result);
+        }
+        return result;
+    }
+
+    /// `result` with its source pointing at the caller's `text` rather than the first caller's.
+    private static <T> Result<T> rebase(Result<T> result, String text) {
+        return switch (result) {
+            case Result.Value<T> v -> Result.ofValue(new Source(v.source().offset(), text), v.value());
+            case Result.Error<T> e -> Result.ofError(new Source(e.source().offset(), text), e.expected(), e.actual());
+        };
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
+
+/// Per-rule parse statistics. [#rule(String, Parser)] only wraps parsers while the profiler is enabled, so a
+/// disabled profiler leaves the grammar exactly as written and costs nothing.
+///
+/// Time and allocation are inclusive of nested rules. Reinvocations are counted within one pass: a call of
+/// [#root(Parser)], or else of the outermost profiled rule, on the current thread. Wrap the whole grammar with
+/// `root` so that rules tried one after another at the top level count against each other.
+static final class Profiler {
+
+    private final boolean enabled;
+    private final Map<String, RuleStats> rules = new ConcurrentHashMap<>();
+    // per thread: the profiled calls in progress and the passes started, so visits can tell passes apart
+    final ThreadLocal<int[]> passes = ThreadLocal.withInitial(() -> new int[2]);
+
+    Profiler(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    static final class RuleStats {
+
+        final String name;
+        final LongAdder invocations = new LongAdder();
+        final LongAdder successes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        // invocations at an offset the rule was already invoked at in the same top-level parse
+        final LongAdder reinvocations = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        private RuleStats(String name) {
+            this.name = name;
+        }
+    }
+
+    <T> Parser<T> rule(String name, Parser<T> parser) {
+        return enabled ? new ProfiledParser<>(this, stats(name), parser) : parser;
+    }
+
+    /// Marks `grammar` as the root of a profiled parse: each call starts a new pass, however it is called.
+    <T> Parser<T> root(Parser<T> grammar) {
+        return enabled ? new ProfiledParser<>(this, null, grammar) : grammar;
+    }
+
+    RuleStats stats(String name) {
+        return rules.computeIfAbsent(name, RuleStats::new);
+    }
+
+    /// Rules by descending cumulative time.
+    String report() {
+        StringBuilder b = new StringBuilder("%-20s %11s %11s %11s %11s %12s %14s%n".formatted(
+                "rule", "invocations", "successes", "failures", "reinvoked", "time.ms", "bytes"));
+        rules.values().stream()
+                .sorted(Comparator.comparingLong((RuleStats r) -> r.nanos.sum()).reversed())
+                .forEach(r -> b.append("%-20s %11d %11d %11d %11d %12.3f %14d%n".formatted(
+                        r.name, r.invocations.sum(), r.successes.sum(), r.failures.sum(), r.reinvocations.sum(),
+                        r.nanos.sum() / 1e6, r.bytes.sum())));
+        return b.toString();
+    }
+}
+
+static class ProfiledParser<T> implements CursorParser<T> {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    final Profiler profiler;
+    // null for a [Profiler#root(Parser)], which only starts passes
+    final Profiler.RuleStats stats;
+    final Parser<T> parser;
+    // offsets this rule was invoked at, per thread, during the current pass
+    private final ThreadLocal<Visits> visits = ThreadLocal.withInitial(Visits::new);
+
+    ProfiledParser(Profiler profiler, Profiler.RuleStats stats, Parser<T> parser) {
+        this.profiler = profiler;
+        this.stats = stats;
+        this.parser = parser;
+    }
+
+    private static final class Visits {
+        // the pass the offsets belong to
+        int pass = -1;
+        final BitSet offsets = new BitSet();
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        int[] passes = profiler.passes.get();
+        if (stats == null) {
+            // a root starts a pass even when nested, e.g. in a Source lambda parsing other text
+            int depth = passes[0];
+            passes[0] = 1;
+            passes[1]++;
+            try {
+                return parser.parse(cursor);
+            } finally {
+                passes[0] = depth;
+            }
+        }
+        if (passes[0]++ == 0) {
+            passes[1]++;
+        }
+        try {
+            return profile(cursor, passes[1]);
+        } finally {
+            passes[0]--;
+        }
+    }
+
+    private boolean profile(Cursor cursor, int pass) {
+        Visits v = visits.get();
+        if (v.pass != pass) {
+            v.pass = pass;
+            v.offsets.clear();
+        }
+        if (v.offsets.get(cursor.offset)) {
+            stats.reinvocations.increment();
+        } else {
+            v.offsets.set(cursor.offset);
+        }
+
+        long bytes = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        boolean matched = parser.parse(cursor);
+        stats.nanos.add(System.nanoTime() - start);
+        stats.bytes.add(THREADS.getCurrentThreadAllocatedBytes() - bytes);
+        stats.invocations.increment();
+        (matched ? stats.successes : stats.failures).increment();
+        return matched;
+    }
+}
+
+/// Flight recorder event for one top-level parse. Record with e.g.
+/// `java -XX:StartFlightRecording:filename=parse.jfr ...` and inspect with `jfr print --events carriage.Parse`.
+@Name("carriage.Parse")
+@Label("Parse")
+@Category("Carriage")
+@StackTrace(false)
+static final class ParseEvent extends Event {
+
+    /// In chars.
+    @Label("Input Length")
+    int inputLength;
+
+    @Label("Success")
+    boolean success;
+
+    /// End of the match, or the furthest failure.
+    @Label("Offset Reached")
+    int offset;
+}
+
+/// Memo table statistics at the end of a packrat parse.
+@Name("carriage.MemoTable")
+@Label("Memo Table")
+@Category("Carriage")
+@StackTrace(false)
+static final class MemoTableEvent extends Event {
+
+    @Label("Entries")
+    int entries;
+
+    @Label("Capacity")
+    int capacity;
+
+    @Label("Hits")
+    long hits;
+
+    @Label("Misses")
+    long misses;
+}
+
+/// A memoized rule evaluation that took longer than the threshold, 1 ms unless configured otherwise, e.g.
+/// `-XX:StartFlightRecording:carriage.Rule#threshold=100us`.
+@Name("carriage.Rule")
+@Label("Slow Rule")
+@Category("Carriage")
+@Threshold("1 ms")
+static final class RuleEvent extends Event {
+
+    // checked before each rule evaluation, so no event is allocated while recording is off
+    static final EventType TYPE = EventType.getEventType(RuleEvent.class);
+
+    @Label("Rule Id")
+    int ruleId;
+
+    @Label("Offset")
+    int offset;
+
+    @Label("Success")
+    boolean success;
+}
+
+/// Compiles a finished combinator tree into one [MethodHandle] tree. Sequences become straight-line
+/// `guardWithTest` chains and choices inline their backtracking. Each tree is bound as a constant into its
+/// own hidden [CompiledParser] class, so the JIT inlines it into one call tree per grammar instead of
+/// making megamorphic `Parser.parse` calls.
+///
+/// Repetitions become `whileLoop` handles and memo and packrat nodes become guards around their compiled
+/// bodies, all calling the same state methods as the interpreter, so a whole grammar stays in one tree.
+/// A profiled rule keeps its child behind a hidden class of its own: each call reads the clock and the
+/// thread's allocation counter, which costs far more than the call it would save. Map nodes call the
+/// parser their function returns, and any other parser, such as a user lambda, is called through the
+/// interpreter.
+///
+/// A chain of choices is flattened and dispatched on the next char: each alternative's FIRST set, the
+/// chars it can start with, decides whether it is tried or only records the failure it would report there.
+static final class GrammarCompiler {
+
+    private static final MethodHandle PARSE;
+    private static final MethodHandle APPLY;
+    private static final MethodHandle ENTER;
+    private static final MethodHandle CLASSIFY;
+    private static final MethodHandle SKIP;
+    private static final MethodHandle SUCCEED;
+    private static final MethodHandle BACKTRACK;
+    private static final MethodHandle EXIT;
+    private static final MethodHandle WRAP_LEFT;
+    private static final MethodHandle WRAP_RIGHT;
+    private static final MethodHandle COMMIT;
+    private static final MethodHandle FAIL;
+    private static final MethodHandle REPEAT_BEGIN;
+    private static final MethodHandle REPEAT_ADD;
+    private static final MethodHandle REPEAT_END;
+    private static final MethodHandle FOLD_BEGIN;
+    private static final MethodHandle FOLD_ADD;
+    private static final MethodHandle FOLD_END;
+    private static final MethodHandle EACH_BEGIN;
+    private static final MethodHandle EACH_ADD;
+    private static final MethodHandle EACH_END;
+    private static final MethodHandle BOX_INT;
+    private static final MethodHandle MEMOIZING;
+    private static final MethodHandle FIND;
+    private static final MethodHandle FOUND;
+    private static final MethodHandle REPLAY;
+    private static final MethodHandle EVALUATE;
+    private static final MethodHandle EVALUATED;
+    private static final MethodHandle PACKRAT_BEGIN;
+    private static final MethodHandle PACKRAT_END;
+    // the class file of CompiledParser, copied for each compiled handle
+    private static final byte[] TEMPLATE;
+
+    static {
+        try (InputStream in = GrammarCompiler.class.getClassLoader().getResourceAsStream(
+                CompiledParser.class.getName().replace('.', '/') + ".class")) {
+            TEMPLATE = Objects.requireNonNull(in, "no class file for CompiledParser").readAllBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType step = MethodType.methodType(boolean.class, Cursor.class);
+            PARSE = lookup.findVirtual(Parser.class, "parse", step);
+            APPLY = lookup.findVirtual(MapParser.class, "apply", step);
+            MethodType branch = MethodType.methodType(boolean.class, long.class, Cursor.class);
+            ENTER = lookup.findStatic(GrammarCompiler.class, "enter", MethodType.methodType(long.class, Cursor.class));
+            CLASSIFY = lookup.findStatic(GrammarCompiler.class, "classify", MethodType.methodType(int.class, int[].class, Cursor.class));
+            SKIP = lookup.findStatic(GrammarCompiler.class, "skip", branch.insertParameterTypes(0, Expectation[].class));
+            SUCCEED = lookup.findStatic(GrammarCompiler.class, "succeed", branch);
+            BACKTRACK = lookup.findStatic(GrammarCompiler.class, "backtrack", branch);
+            EXIT = lookup.findStatic(GrammarCompiler.class, "exit", branch);
+            COMMIT = lookup.findStatic(GrammarCompiler.class, "commit", step);
+            WRAP_LEFT = lookup.findStatic(GrammarCompiler.class, "wrapLeft", step);
+            WRAP_RIGHT = lookup.findStatic(GrammarCompiler.class, "wrapRight", step);
+            FAIL = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Cursor.class);
+            MethodType add = MethodType.methodType(boolean.class, boolean.class, Cursor.class);
+            REPEAT_BEGIN = lookup.findConstructor(RepeatParser.Items.class, MethodType.methodType(void.class, Cursor.class));
+            REPEAT_ADD = lookup.findVirtual(RepeatParser.Items.class, "add", add);
+            REPEAT_END = lookup.findVirtual(RepeatParser.Items.class, "end", step.insertParameterTypes(0, int.class));
+            FOLD_BEGIN = lookup.findConstructor(FoldParser.Accumulation.class,
+                    MethodType.methodType(void.class, FoldParser.class, Cursor.class));
+            FOLD_ADD = lookup.findVirtual(FoldParser.Accumulation.class, "add", add);
+            FOLD_END = lookup.findVirtual(FoldParser.Accumulation.class, "end", step);
+            EACH_BEGIN = lookup.findConstructor(ForEachParser.Forwarding.class,
+                    MethodType.methodType(void.class, Consumer.class, Cursor.class));
+            EACH_ADD = lookup.findVirtual(ForEachParser.Forwarding.class, "add", add);
+            EACH_END = lookup.findVirtual(ForEachParser.Forwarding.class, "end", step);
+            BOX_INT = lookup.findStatic(GrammarCompiler.class, "boxInt", step);
+            MEMOIZING = lookup.findStatic(GrammarCompiler.class, "memoizing", step);
+            FIND = lookup.findStatic(GrammarCompiler.class, "find", MethodType.methodType(int.class, int.class, Cursor.class));
+            FOUND = lookup.findStatic(GrammarCompiler.class, "found", MethodType.methodType(boolean.class, int.class));
+            REPLAY = lookup.findStatic(GrammarCompiler.class, "replay", step.insertParameterTypes(0, int.class));
+            EVALUATE = lookup.findConstructor(MemoParser.Evaluation.class, MethodType.methodType(void.class, int.class, Cursor.class));
+            EVALUATED = lookup.findVirtual(MemoParser.Evaluation.class, "end", add);
+            PACKRAT_BEGIN = lookup.findStatic(PackratParser.class, "begin",
+                    MethodType.methodType(MemoTable.Binding.class, Cursor.class));
+            PACKRAT_END = lookup.findStatic(GrammarCompiler.class, "endPackrat",
+                    add.insertParameterTypes(0, Throwable.class).insertParameterTypes(2, MemoTable.Binding.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    // shared sub-trees are compiled once
+    private final Map<Parser<?>, MethodHandle> compiled = new IdentityHashMap<>();
+
+    private GrammarCompiler() {
+    }
+
+    static <T> Parser<T> compile(Parser<T> grammar) {
+        return grammar instanceof Compiled ? grammar : define(new GrammarCompiler().handle(grammar));
+    }
+
+    /// Returns a `(Cursor)boolean` handle for `parser`.
+    private MethodHandle handle(Parser<?> parser) {
+        MethodHandle handle = compiled.get(parser);
+        if (handle == null) {
+            handle = switch (parser) {
+                case AndParser<?, ?> and -> sequence(and);
+                case OrParser<?, ?> or -> choice(or);
+                case MapParser<?, ?> map ->
+                        MethodHandles.guardWithTest(handle(map.parser), APPLY.bindTo(map), FAIL);
+                case CommitParser<?> commit -> MethodHandles.guardWithTest(handle(commit.parser), COMMIT, FAIL);
+                case RepeatParser<?> repeat ->
+                        loop(REPEAT_BEGIN, REPEAT_ADD, handle(repeat.parser), MethodHandles.insertArguments(REPEAT_END, 1, repeat.min));
+                case FoldParser<?, ?> fold ->
+                        loop(FOLD_BEGIN.bindTo(fold), FOLD_ADD, handle(fold.parser), FOLD_END);
+                case ForEachParser<?> each ->
+                        then(loop(EACH_BEGIN.bindTo(each.consumer), EACH_ADD, handle(each.parser), EACH_END), BOX_INT);
+                case MemoParser<?> memo -> memo(memo.ruleId, handle(memo.parser));
+                case PackratParser<?> packrat -> MethodHandles.guardWithTest(MEMOIZING, handle(packrat.parser),
+                        MethodHandles.foldArguments(MethodHandles.tryFinally(
+                                MethodHandles.dropArguments(handle(packrat.parser), 0, MemoTable.Binding.class), PACKRAT_END), PACKRAT_BEGIN));
+                case ProfiledParser<?> profiled -> interpret(new ProfiledParser<>(profiled.profiler, profiled.stats, child(profiled.parser)));
+                case Compiled c -> c.handle();
+                default -> interpret(parser);
+            };
+            compiled.put(parser, handle);
+        }
+        return handle;
+    }
+
+    /// A separately defined compiled copy of `parser`, for the nodes still run by the interpreter.
+    private <T> Parser<T> child(Parser<T> parser) {
+        return define(handle(parser));
+    }
+
+    /// Implemented by every hidden copy of [CompiledParser].
+    interface Compiled {
+
+        MethodHandle handle();
+    }
+
+    /// Defines a hidden copy of [CompiledParser] with `handle` as its class data and returns an instance.
+    @SuppressWarnings("unchecked")
+    private static <T> Parser<T> define(MethodHandle handle) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(TEMPLATE, handle, true);
+            return (Parser<T>) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /// The loop of [RepeatParser#parse] and the other repetitions: `begin` makes the state, `add` takes the
+    /// outcome of each `item` attempt and returns whether to try another, and `end` gives the result.
+    private static MethodHandle loop(MethodHandle begin, MethodHandle add, MethodHandle item, MethodHandle end) {
+        MethodHandle next = MethodHandles.dropArguments(MethodHandles.identity(begin.type().returnType()), 1, Cursor.class);
+        MethodHandle items = MethodHandles.whileLoop(begin, MethodHandles.foldArguments(add, 1, item), next);
+        return MethodHandles.foldArguments(end, items);
+    }
+
+    /// [MemoParser#parse] around the compiled `rule`: replays a memoized result, or evaluates the rule and
+    /// stores it.
+    private static MethodHandle memo(int ruleId, MethodHandle rule) {
+        MethodHandle evaluate = MethodHandles.foldArguments(
+                MethodHandles.foldArguments(EVALUATED, 1, rule), MethodHandles.insertArguments(EVALUATE, 0, ruleId));
+        MethodHandle memoized = MethodHandles.foldArguments(
+                MethodHandles.guardWithTest(FOUND, REPLAY, MethodHandles.dropArguments(evaluate, 0, int.class)),
+                MethodHandles.insertArguments(FIND, 0, ruleId));
+        return MethodHandles.guardWithTest(MEMOIZING, memoized, rule);
+    }
+
+    private static MethodHandle interpret(Parser<?> parser) {
+        return PARSE.bindTo(parser);
+    }
+
+    /// `a.and(b).and(c)` becomes `a(c) ? (b(c) ? c(c) : false) : false`.
+    private MethodHandle sequence(AndParser<?, ?> and) {
+        List<Parser<?>> steps = new ArrayList<>();
+        flatten(and, steps);
+        MethodHandle handle = handle(steps.get(steps.size() - 1));
+        for (int i = steps.size() - 2; i >= 0; i--) {
+            handle = MethodHandles.guardWithTest(handle(steps.get(i)), handle, FAIL);
+        }
+        return handle;
+    }
+
+    private static void flatten(Parser<?> parser, List<Parser<?>> steps) {
+        if (parser instanceof AndParser<?, ?> and) {
+            flatten(and.left, steps);
+            flatten(and.right, steps);
+        } else {
+            steps.add(parser);
+        }
+    }
+
+    /// The chars an alternative can start with, Latin-1 only, and the failures it records when the next
+    /// char is not one of them. `null` if it must always be tried, e.g. because it can match empty.
+    private record First(BitSet chars, List<Expectation> expectations) {
+    }
+
+    private static First first(Parser<?> parser) {
+        return switch (parser) {
+            case TokenParser token when !token.token.isEmpty() -> {
+                BitSet chars = new BitSet(256);
+                if (token.token.charAt(0) < 256) {
+                    chars.set(token.token.charAt(0));
+                }
+                yield new First(chars, List.of(token.expectation));
+            }
+            case WordParser word -> first(CharClass.LETTER_OR_DIGIT, Expectation.WORD);
+            case CharParser c -> first(c.chars, c.expectation);
+            case SpanParser span -> first(span.chars, span.expectation);
+            case NumberParser number -> first(CharClass.DIGIT, Expectation.NUMBER);
+            case LongNumberParser number -> first(CharClass.DIGIT, Expectation.NUMBER);
+            case AnyCharParser any -> first(new CharClass(c -> true), Expectation.ANY_CHARACTER);
+            case AndParser<?, ?> and -> first(and.left);
+            case OrParser<?, ?> or -> {
+                First left = first(or.left);
+                First right = first(or.right);
+                if (left == null || right == null) {
+                    yield null;
+                }
+                BitSet chars = (BitSet) left.chars().clone();
+                chars.or(right.chars());
+                yield new First(chars, Stream.concat(left.expectations().stream(), right.expectations().stream()).toList());
+            }
+            case MapParser<?, ?> map -> first(map.parser);
+            case CommitParser<?> commit -> first(commit.parser);
+            case MemoParser<?> memo -> first(memo.parser);
+            case RepeatParser<?> repeat when repeat.min > 0 -> first(repeat.parser);
+            default -> null;
+        };
+    }
+
+    private static First first(CharClass members, Expectation expectation) {
+        BitSet chars = new BitSet(256);
+        for (int c = 0; c < 256; c++) {
+            if (members.contains(c)) {
+                chars.set(c);
+            }
+        }
+        return new First(chars, List.of(expectation));
+    }
+
+    /// Flattens nested choices into `alternatives`, each wrapping its value the way the nesting would.
+    private void alternatives(Parser<?> parser, MethodHandle wrap, List<MethodHandle> alternatives, List<First> firsts) {
+        if (parser instanceof OrParser<?, ?> or && !compiled.containsKey(or)) {
+            alternatives(or.left, then(WRAP_LEFT, wrap), alternatives, firsts);
+            alternatives(or.right, then(WRAP_RIGHT, wrap), alternatives, firsts);
+        } else {
+            alternatives.add(then(handle(parser), wrap));
+            firsts.add(first(parser));
+        }
+    }
+
+    private static MethodHandle then(MethodHandle first, MethodHandle second) {
+        return second == null ? first : MethodHandles.guardWithTest(first, second, FAIL);
+    }
+
+    /// Tries the alternatives in order, restoring the offset between them, unless one committed. With FIRST
+    /// sets known, a table over the next char selects a chain that tries only the viable alternatives; the
+    /// saved state packs the offset with the enclosing choice's commit flag, see [OrParser].
+    private MethodHandle choice(OrParser<?, ?> or) {
+        List<MethodHandle> alternatives = new ArrayList<>();
+        List<First> firsts = new ArrayList<>();
+        alternatives(or, null, alternatives, firsts);
+        // chars above Latin-1 try every alternative
+        MethodHandle all = chain(alternatives, firsts, null);
+        if (firsts.stream().allMatch(Objects::isNull)) {
+            return MethodHandles.foldArguments(all, ENTER);
+        }
+
+        // group the Latin-1 chars and the end of input (256) by which alternatives are viable
+        Map<BitSet, Integer> groups = new LinkedHashMap<>();
+        int[] classes = new int[257];
+        for (int c = 0; c <= 256; c++) {
+            BitSet viable = new BitSet(firsts.size());
+            for (int i = 0; i < firsts.size(); i++) {
+                First first = firsts.get(i);
+                if (first == null || c < 256 && first.chars().get(c)) {
+                    viable.set(i);
+                }
+            }
+            classes[c] = groups.computeIfAbsent(viable, v -> groups.size());
+        }
+        MethodHandle[] targets = groups.keySet().stream()
+                .map(viable -> MethodHandles.dropArguments(chain(alternatives, firsts, viable), 0, int.class))
+                .toArray(MethodHandle[]::new);
+        MethodHandle dispatch = MethodHandles.tableSwitch(MethodHandles.dropArguments(all, 0, int.class), targets);
+        MethodHandle classify = MethodHandles.dropArguments(CLASSIFY.bindTo(classes), 0, long.class);
+        return MethodHandles.foldArguments(MethodHandles.foldArguments(dispatch, classify), ENTER);
+    }
+
+    /// A `(long, Cursor)boolean` chain trying the `viable` alternatives, all of them if `null`. The others
+    /// only record their failures, in the order they would have been tried.
+    private static MethodHandle chain(List<MethodHandle> alternatives, List<First> firsts, BitSet viable) {
+        MethodHandle next = EXIT;
+        List<Expectation> skipped = new ArrayList<>();
+        for (int i = alternatives.size() - 1; i >= 0; i--) {
+            if (viable != null && !viable.get(i)) {
+                skipped.addAll(0, firsts.get(i).expectations());
+                continue;
+            }
+            next = skip(skipped, next);
+            skipped.clear();
+            MethodHandle failed = next == EXIT ? EXIT : MethodHandles.guardWithTest(BACKTRACK, next, EXIT);
+            next = MethodHandles.guardWithTest(MethodHandles.dropArguments(alternatives.get(i), 0, long.class), SUCCEED, failed);
+        }
+        return skip(skipped, next);
+    }
+
+    private static MethodHandle skip(List<Expectation> skipped, MethodHandle next) {
+        if (skipped.isEmpty()) {
+            return next;
+        }
+        return MethodHandles.guardWithTest(SKIP.bindTo(skipped.toArray(Expectation[]::new)), next, EXIT);
+    }
+
+    /// Returns the dispatch group of the next char, `-1` above Latin-1.
+    private static int classify(int[] classes, Cursor cursor) {
+        int offset = cursor.offset;
+        cursor.examine(offset + 1);
+        if (offset >= cursor.input.length()) {
+            return classes[256];
+        }
+        char c = cursor.input.charAt(offset);
+        return c < 256 ? classes[c] : -1;
+    }
+
+    /// Records the failures of alternatives that cannot start at the next char; always returns `true`.
+    private static boolean skip(Expectation[] expectations, long state, Cursor cursor) {
+        for (Expectation expectation : expectations) {
+            cursor.fail(expectation);
+        }
+        return true;
+    }
+
+    private static long enter(Cursor cursor) {
+        long state = (long) cursor.offset << 1 | (cursor.committed ? 1 : 0);
+        cursor.committed = false;
+        return state;
+    }
+
+    private static boolean succeed(long state, Cursor cursor) {
+        exit(state, cursor);
+        return true;
+    }
+
+    private static boolean backtrack(long state, Cursor cursor) {
+        if (cursor.committed) {
+            return false;
+        }
+        cursor.offset = (int) (state >>> 1);
+        return true;
+    }
+
+    /// Merges the enclosing choice's commit flag back in; always returns `false`.
+    private static boolean exit(long state, Cursor cursor) {
+        cursor.committed |= (state & 1) != 0;
+        return false;
+    }
+
+    private static boolean commit(Cursor cursor) {
+        cursor.commit();
+        return true;
+    }
+
+    private static boolean wrapLeft(Cursor cursor) {
+        cursor.value = Either.ofLeft(cursor.value);
+        return true;
+    }
+
+    private static boolean wrapRight(Cursor cursor) {
+        cursor.value = Either.ofRight(cursor.value);
+        return true;
+    }
+
+    private static boolean boxInt(Cursor cursor) {
+        cursor.value = cursor.intValue;
+        return true;
+    }
+
+    private static boolean memoizing(Cursor cursor) {
+        return cursor.memo != null;
+    }
+
+    /// Returns the memo slot of the rule at the current offset, or `-1`.
+    private static int find(int ruleId, Cursor cursor) {
+        return cursor.memo.find(ruleId, cursor.offset);
+    }
+
+    private static boolean found(int slot) {
+        return slot >= 0;
+    }
+
+    private static boolean replay(int slot, Cursor cursor) {
+        return cursor.memo.replay(slot, cursor);
+    }
+
+    private static boolean endPackrat(Throwable thrown, boolean matched, MemoTable.Binding previous, Cursor cursor) {
+        PackratParser.end(previous, cursor);
+        return matched;
+    }
+}
+
+/// The template of compiled grammars: [GrammarCompiler] defines a hidden copy of this class for each
+/// compiled handle, passed as class data. In a copy `HANDLE` is a trusted constant, so the JIT inlines the
+/// handle tree into `parse`; a handle kept in an instance field would stay an opaque call.
+static final class CompiledParser<T> implements CursorParser<T>, GrammarCompiler.Compiled {
+
+    // null in this template itself, which is never instantiated
+    private static final MethodHandle HANDLE;
+
+    static {
+        try {
+            HANDLE = MethodHandles.classData(MethodHandles.lookup(), ConstantDescs.DEFAULT_NAME, MethodHandle.class);
+        } catch (IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    @Override
+    public boolean parse(Cursor cursor) {
+        try {
+            return (boolean) HANDLE.invokeExact(cursor);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    @Override
+    public MethodHandle handle() {
+        return HANDLE;
+    }
+}
+
+/// A persistent rope: a height-balanced tree of string leaves. Edits build a new rope that shares every
+/// untouched node with the old one, so any rope can be kept as an immutable snapshot. `charAt`, `prefix`,
+/// `suffix`, `concat` and `replace` take O(log n).
+static abstract sealed class Rope implements CharSequence permits Rope.Leaf, Rope.Node {
+
+    static final int MAX_LEAF = 512;
+
+    static final Rope EMPTY = new Leaf("");
+
+    static Rope of(CharSequence text) {
+        if (text instanceof Rope rope) {
+            return rope;
+        }
+        return build(text.toString(), 0, text.length());
+    }
+
+    private static Rope build(String text, int from, int to) {
+        if (to - from <= MAX_LEAF) {
+            return new Leaf(text.substring(from, to));
+        }
+        int mid = (from + to) >>> 1;
+        return new Node(build(text, from, mid), build(text, mid, to));
+    }
+
+    abstract int height();
+
+    /// The first `end` chars.
+    abstract Rope prefix(int end);
+
+    /// The chars from `start` on.
+    abstract Rope suffix(int start);
+
+    /// Returns the first index at or after `from` whose char matches, or `-1`.
+    abstract int indexWhere(int from, IntPredicate matches);
+
+    abstract void appendTo(StringBuilder builder);
+
+    Rope concat(Rope other) {
+        return join(this, other);
+    }
+
+    /// Replaces the chars from `start` to `end` with `text`.
+    Rope replace(int start, int end, CharSequence text) {
+        Objects.checkFromToIndex(start, end, length());
+        return join(join(prefix(start), of(text)), suffix(end));
+    }
+
+    @Override
+    public Rope subSequence(int start, int end) {
+        Objects.checkFromToIndex(start, end, length());
+        return suffix(start).prefix(end - start);
+    }
+
+    boolean startsWith(String text, int at) {
+        if (at < 0 || at + text.length() > length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (charAt(at + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /// Returns the first index at or after `from` where `text` occurs, or `-1`. Builds a [Search] on each
+    /// call; keep one from [Search#literal] to search for the same text repeatedly.
+    int indexOf(String text, int from) {
+        if (text.isEmpty()) {
+            return from <= length() ? Math.max(from, 0) : -1;
+        }
+        return text.length() == 1 ? indexOf(text.charAt(0), from) : Search.literal(text).find(this, from);
+    }
+
+    /// Returns the first index at or after `from` of `c`, or `-1`. Leaves are searched with
+    /// [String#indexOf(int, int)], which the JIT vectorizes.
+    abstract int indexOf(char c, int from);
+
+    /// A view for reading runs of chars: the leaf last read is kept, so `charAt` near the previous index
+    /// skips the descent from the root.
+    CharSequence reader() {
+        return this instanceof Leaf leaf ? leaf.text : new Reader(this);
+    }
+
+    private static final class Reader implements CharSequence {
+
+        private final Rope rope;
+        private String leaf = "";
+        private int leafStart;
+
+        Reader(Rope rope) {
+            this.rope = rope;
+        }
+
+        @Override
+        public int length() {
+            return rope.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            int i = index - leafStart;
+            if (i >= 0 && i < leaf.length()) {
+                return leaf.charAt(i);
+            }
+            Objects.checkIndex(index, rope.length());
+            Rope r = rope;
+            int start = 0;
+            while (r instanceof Node node) {
+                if (index - start < node.left.length()) {
+                    r = node.left;
+                } else {
+                    start += node.left.length();
+                    r = node.right;
+                }
+            }
+            leaf = ((Leaf) r).text;
+            leafStart = start;
+            return leaf.charAt(index - start);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return rope.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return rope.toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length());
+        appendTo(builder);
+        return builder.toString();
+    }
+
+    private static Rope join(Rope left, Rope right) {
+        if (left.length() == 0) {
+            return right;
+        } else if (right.length() == 0) {
+            return left;
+        } else if (left instanceof Leaf l && right instanceof Leaf r && l.length() + r.length() <= MAX_LEAF) {
+            return new Leaf(l.text + r.text);
+        } else if (left.height() > right.height() + 1) {
+            // join down the right spine of the taller side
+            Node l = (Node) left;
+            return balance(l.left, join(l.right, right));
+        } else if (right.height() > left.height() + 1) {
+            Node r = (Node) right;
+            return balance(join(left, r.left), r.right);
+        }
+        return new Node(left, right);
+    }
+
+    /// Rotates when the heights of `left` and `right` differ by two.
+    private static Rope balance(Rope left, Rope right) {
+        if (left.height() > right.height() + 1) {
+            Node l = (Node) left;
+            if (l.left.height() >= l.right.height()) {
+                return new Node(l.left, new Node(l.right, right));
+            }
+            Node lr = (Node) l.right;
+            return new Node(new Node(l.left, lr.left), new Node(lr.right, right));
+        } else if (right.height() > left.height() + 1) {
+            Node r = (Node) right;
+            if (r.right.height() >= r.left.height()) {
+                return new Node(new Node(left, r.left), r.right);
+            }
+            Node rl = (Node) r.left;
+            return new Node(new Node(left, rl.left), new Node(rl.right, r.right));
+        }
+        return new Node(left, right);
+    }
+
+    static final class Leaf extends Rope {
+
+        private final String text;
+
+        Leaf(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        int height() {
+            return 0;
+        }
+
+        @Override
+        Rope prefix(int end) {
+            return end == text.length() ? this : new Leaf(text.substring(0, end));
+        }
+
+        @Override
+        Rope suffix(int start) {
+            return start == 0 ? this : new Leaf(text.substring(start));
+        }
+
+        @Override
+        int indexOf(char c, int from) {
+            return text.indexOf(c, Math.max(from, 0));
+        }
+
+        @Override
+        int indexWhere(int from, IntPredicate matches) {
+            for (int i = Math.max(from, 0), l = text.length(); i < l; i++) {
+                if (matches.test(text.charAt(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            builder.append(text);
+        }
+    }
+
+    static final class Node extends Rope {
+
+        private final Rope left;
+        private final Rope right;
+        private final int length;
+        private final int height;
+
+        Node(Rope left, Rope right) {
+            this.left = left;
+            this.right = right;
+            this.length = left.length() + right.length();
+            this.height = Math.max(left.height(), right.height()) + 1;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            Objects.checkIndex(index, length);
+            Rope rope = this;
+            while (rope instanceof Node node) {
+                if (index < node.left.length()) {
+                    rope = node.left;
+                } else {
+                    index -= node.left.length();
+                    rope = node.right;
+                }
+            }
+            return rope.charAt(index);
+        }
+
+        @Override
+        int height() {
+            return height;
+        }
+
+        @Override
+        Rope prefix(int end) {
+            if (end <= left.length()) {
+                return left.prefix(end);
+            } else if (end == length) {
+                return this;
+            }
+            return join(left, right.prefix(end - left.length()));
+        }
+
+        @Override
+        Rope suffix(int start) {
+            if (start >= left.length()) {
+                return right.suffix(start - left.length());
+            } else if (start == 0) {
+                return this;
+            }
+            return join(left.suffix(start), right);
+        }
+
+        @Override
+        int indexOf(char c, int from) {
+            int leftLength = left.length();
+            if (from < leftLength) {
+                int i = left.indexOf(c, from);
+                if (i >= 0) {
+                    return i;
+                }
+                from = leftLength;
+            }
+            int i = right.indexOf(c, from - leftLength);
+            return i < 0 ? -1 : i + leftLength;
+        }
+
+        @Override
+        int indexWhere(int from, IntPredicate matches) {
+            int leftLength = left.length();
+            if (from < leftLength) {
+                int i = left.indexWhere(from, matches);
+                if (i >= 0) {
+                    return i;
+                }
+                from = leftLength;
+            }
+            int i = right.indexWhere(from - leftLength, matches);
+            return i < 0 ? -1 : i + leftLength;
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            left.appendTo(builder);
+            right.appendTo(builder);
+        }
+    }
+}
+
+/// Finds literals in text: [String#indexOf] for single chars and Boyer-Moore-Horspool for longer literals.
+/// A [Rope] is searched leaf by leaf or through its [Rope#reader()], never by descending from the root for
+/// each char.
+sealed interface Search permits Search.CharSearch, Search.HorspoolSearch {
+
+    /// Returns the first index at or after `from` where a match starts, or `-1`.
+    int find(CharSequence text, int from);
+
+    /// A search for `literal`. Searches are not cached; keep the returned one to search for the same text again.
+    static Search literal(String literal) {
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("empty literal");
+        }
+        return literal.length() == 1 ? new CharSearch(literal.charAt(0)) : new HorspoolSearch(literal);
+    }
+
+    final class CharSearch implements Search {
+
+        private final char c;
+
+        CharSearch(char c) {
+            this.c = c;
+        }
+
+        @Override
+        public int find(CharSequence text, int from) {
+            if (text instanceof String s) {
+                return s.indexOf(c, Math.max(from, 0));
+            } else if (text instanceof Rope rope) {
+                return rope.indexOf(c, from);
+            }
+            for (int i = Math.max(from, 0), l = text.length(); i < l; i++) {
+                if (text.charAt(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CharSearch other && other.c == c;
+        }
+
+        @Override
+        public int hashCode() {
+            return c;
+        }
+    }
+
+    final class HorspoolSearch implements Search {
+
+        private final String literal;
+        // how far the window may move when its last char is `c`, indexed by the low byte of `c`; chars
+        // sharing a low byte take the smallest shift of any of them
+        private final int[] shift = new int[256];
+
+        HorspoolSearch(String literal) {
+            this.literal = literal;
+            int m = literal.length();
+            Arrays.fill(shift, m);
+            for (int i = 0; i < m - 1; i++) {
+                shift[literal.charAt(i) & 0xFF] = m - 1 - i;
+            }
+        }
+
+        @Override
+        public int find(CharSequence text, int from) {
+            if (text instanceof String s) {
+                // an intrinsic that outruns a table-driven scan on flat strings
+                return s.indexOf(literal, Math.max(from, 0));
+            }
+            CharSequence t = text instanceof Rope rope ? rope.reader() : text;
+            int m = literal.length();
+            char last = literal.charAt(m - 1);
+            for (int i = Math.max(from, 0), n = t.length(); i + m <= n; ) {
+                char c = t.charAt(i + m - 1);
+                if (c == last && matchesAt(t, i)) {
+                    return i;
+                }
+                i += shift[c & 0xFF];
+            }
+            return -1;
+        }
+
+        private boolean matchesAt(CharSequence text, int at) {
+            for (int j = literal.length() - 2; j >= 0; j--) {
+                if (text.charAt(at + j) != literal.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the shift table follows from the literal
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof HorspoolSearch other && other.literal.equals(literal);
+        }
+
+        @Override
+        public int hashCode() {
+            return literal.hashCode();
+        }
+    }
+}
+
+/// A Carriage command, see the readme.
+sealed interface Command permits Command.Go, Command.Call, Command.Group {
+
+    /// `g` followed by targets, visited in order.
+    record Go(List<Target> targets) implements Command {
+    }
+
+    /// `:up` or `:dn`, applied to the word at the position.
+    record Call(String function) implements Command {
+    }
+
+    /// `( ... )`, run once, or with `*` until its body fails.
+    record Group(List<Command> body, boolean repeat) implements Command {
+    }
+
+    /// Where a Go command moves to. Symbols and literals are moved past; words are moved to the start of.
+    sealed interface Target permits Target.Symbol, Target.Literal, Target.AnyWord, Target.Word {
+
+        /// A single character, e.g. the `-` of `g-`.
+        record Symbol(char symbol) implements Target {
+        }
+
+        /// `'text'`. Its search is built once, when the program is parsed, not on each run.
+        record Literal(String text, Search search) implements Target {
+
+            Literal(String text) {
+                this(text, Search.literal(text));
+            }
+        }
+
+        /// `w`, the start of the next word.
+        record AnyWord() implements Target {
+        }
+
+        /// `w'text'`, the next whole word equal to `text`. Its search is built once, when the program is
+        /// parsed, and reused for every occurrence that is not a whole word.
+        record Word(String text, Search search) implements Target {
+
+            Word(String text) {
+                this(text, Search.literal(text));
+            }
+        }
+    }
+}
+
+/// A parsed Carriage program, run against a [Rope].
+record Program(List<Command> commands) {
+
+    record Execution(Rope text, int position, boolean completed) {
+    }
+
+    static Parser<Program> parser() {
+        return ProgramParser.PROGRAM;
+    }
+
+    /// Parses the whole of `text` as a program.
+    static Program parse(CharSequence text) {
+        Cursor cursor = new Cursor(text);
+        Result<Program> result = cursor.run(parser());
+        if (result.getValue().isEmpty() || result.getSource().offset() != text.length()) {
+            throw new IllegalArgumentException("invalid program: " + result.getErrorMessage().orElse(
+                    "unexpected text at " + result.getSource().offset()));
+        }
+        return result.getValue().get();
+    }
+
+    /// Runs the program from the start of `text`. Stops at the first top-level command that fails; the
+    /// execution then holds the edits made up to that point.
+    Execution run(Rope text) {
+        State state = new State(text);
+        boolean completed = run(commands, state);
+        return new Execution(state.text, state.position, completed);
+    }
+
+    private static final class State {
+        Rope text;
+        int position;
+
+        State(Rope text) {
+            this.text = text;
+        }
+    }
+
+    private static boolean run(List<Command> commands, State state) {
+        for (Command command : commands) {
+            if (!run(command, state)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean run(Command command, State state) {
+        return switch (command) {
+            case Command.Go go -> {
+                for (Command.Target target : go.targets()) {
+                    int position = find(target, state.text, state.position);
+                    if (position < 0) {
+                        yield false;
+                    }
+                    state.position = position;
+                }
+                yield true;
+            }
+            case Command.Call call -> {
+                int start = state.position;
+                int end = wordEnd(state.text, start);
+                if (end == start) {
+                    yield false;
+                }
+                String word = state.text.subSequence(start, end).toString();
+                String mapped = call.function().equals("up") ? word.toUpperCase(Locale.ROOT) : word.toLowerCase(Locale.ROOT);
+                if (!mapped.equals(word)) {
+                    state.text = state.text.replace(start, end, mapped);
+                }
+                state.position = start + mapped.length();
+                yield true;
+            }
+            case Command.Group group -> {
+                if (!group.repeat()) {
+                    yield run(group.body(), state);
+                }
+                while (true) {
+                    Rope text = state.text;
+                    int position = state.position;
+                    if (!run(group.body(), state)) {
+                        // undo the failed iteration
+                        state.text = text;
+                        state.position = position;
+                        yield true;
+                    } else if (state.position == position && state.text == text) {
+                        // no progress, so it would repeat forever
+                        yield true;
+                    }
+                }
+            }
+        };
+    }
+
+    private static boolean isWord(int c) {
+        return CharClass.LETTER_OR_DIGIT.contains(c);
+    }
+
+    private static int wordEnd(Rope text, int from) {
+        int end = text.indexWhere(from, c -> !isWord(c));
+        return end < 0 ? text.length() : end;
+    }
+
+    /// Returns the position `target` moves to from `from`, or `-1` if it does not occur.
+    private static int find(Command.Target target, Rope text, int from) {
+        return switch (target) {
+            case Command.Target.Symbol symbol -> {
+                int i = text.indexOf(symbol.symbol(), from);
+                yield i < 0 ? -1 : i + 1;
+            }
+            case Command.Target.Literal literal -> {
+                int i = literal.search().find(text, from);
+                yield i < 0 ? -1 : i + literal.text().length();
+            }
+            case Command.Target.AnyWord _ -> {
+                // skip the rest of a word the position is inside of
+                int start = from > 0 && from < text.length() && isWord(text.charAt(from - 1)) ? wordEnd(text, from) : from;
+                yield text.indexWhere(start, Program::isWord);
+            }
+            case Command.Target.Word word -> {
+                String w = word.text();
+                for (int i = word.search().find(text, from); i >= 0; i = word.search().find(text, i + 1)) {
+                    boolean startsWord = i == 0 || !isWord(text.charAt(i - 1));
+                    boolean endsWord = i + w.length() == text.length() || !isWord(text.charAt(i + w.length()));
+                    if (startsWord && endsWord) {
+                        yield i;
+                    }
+                }
+                yield -1;
+            }
+        };
+    }
+}
+
+/// The Carriage program grammar, built from the combinators:
+///
+/// ```
+/// Blank   <- ([ \t\r\n]+ / "|" [^\n]*)*
+/// Program <- Blank (Command Blank)+
+/// Command <- Go / Call / Group
+/// Go      <- "g" Target+
+/// Target  <- "w" Literal? / Literal / [^gw'():|*\s]
+/// Call    <- ":" ("up" / "dn")
+/// Group   <- "(" Program ")" "*"?
+/// Literal <- "'" [^']+ "'"
+/// ```
+///
+/// `g`, `:`, `(` and the opening `'` commit, so a command or literal that is started but malformed is
+/// reported as such instead of ending the program before it.
+static final class ProgramParser {
+
+    // chars that cannot be a Symbol target
+    private static final String RESERVED = "gw'():|*";
+
+    private static final CharClass SPACE = new CharClass(Character::isWhitespace);
+    private static final CharClass COMMENT = new CharClass(c -> c != '\n');
+    private static final CharClass LITERAL_TEXT = new CharClass(c -> c != '\'');
+    private static final CharClass SYMBOL = new CharClass(c ->
+            Character.isBmpCodePoint(c) && RESERVED.indexOf(c) < 0 && !Character.isWhitespace(c));
+
+    private static final IntParser BLANK = Parser.skipMany(Parser.span(SPACE, Expectation.BLANK)
+            .or(Parser.token("|").and(Parser.span(COMMENT, Expectation.COMMENT).or(Parser.value("")))));
+
+    private static final Parser<String> LITERAL = Parser.commit(Parser.token("'")).and(
+            Parser.span(LITERAL_TEXT, Expectation.LITERAL).map(text -> Parser.token("'").and(Parser.value(text.getValue().get()))));
+
+    private static final Parser<Command.Target> WORD = Parser.token("w").and(ProgramParser.<Command.Target>choice(
+            LITERAL.map(text -> Parser.value(new Command.Target.Word(text.getValue().get()))),
+            Parser.value(new Command.Target.AnyWord())));
+
+    private static final Parser<Command.Target> TARGET = choice(choice(
+            WORD,
+            LITERAL.map(text -> Parser.value(new Command.Target.Literal(text.getValue().get())))),
+            Parser.charIn(SYMBOL, Expectation.GO_TARGET).map(c -> Parser.value(new Command.Target.Symbol(c.getValue().get().charAt(0)))));
+
+    private static final Parser<Command> GO = Parser.commit(Parser.token("g")).and(
+            Parser.oneOrMore(TARGET).map(targets -> Parser.value(new Command.Go(targets.getValue().get()))));
+
+    private static final Parser<Command> CALL = Parser.commit(Parser.token(":")).and(
+            Parser.token("up").or(Parser.token("dn")).map(function -> Parser.value(new Command.Call(either(function.getValue().get())))));
+
+    // refers to COMMANDS through a lambda, since a group holds a whole program
+    private static final Parser<Command> GROUP = Parser.commit(Parser.token("(")).and(
+            ((CursorParser<List<Command>>) cursor -> ProgramParser.COMMANDS.parse(cursor)).map(body -> Parser.token(")").and(
+                    Parser.token("*").or(Parser.value("")).map(repeat -> Parser.value(
+                            new Command.Group(body.getValue().get(), repeat.getValue().get() instanceof Either.Left<?, ?>))))));
+
+    private static final Parser<Command> COMMAND = choice(choice(GO, CALL), GROUP);
+
+    private static final Parser<List<Command>> COMMANDS = BLANK.and(
+            Parser.oneOrMore(COMMAND.map(command -> BLANK.and(Parser.value(command.getValue().get())))));
+
+    static final Parser<Program> PROGRAM = COMMANDS.map(commands -> Parser.value(new Program(commands.getValue().get())));
+
+    private ProgramParser() {
+    }
+
+    /// Either alternative, as their common type.
+    private static <T> Parser<T> choice(Parser<? extends T> left, Parser<? extends T> right) {
+        return left.or(right).map(result -> Parser.value(either(result.getValue().get())));
+    }
+
+    private static <T> T either(Either<? extends T, ? extends T> either) {
+        return switch (either) {
+            case Either.Left<? extends T, ? extends T> left -> left.value();
+            case Either.Right<? extends T, ? extends T> right -> right.value();
+        };
+    }
+}
+
+/// A text edited by Carriage programs. Each run swaps in a new [Rope], so a [#snapshot()] taken by a reader
+/// never changes while edits continue.
+static final class Document {
+
+    private volatile Rope text;
+
+    Document(CharSequence text) {
+        this.text = Rope.of(text);
+    }
+
+    Rope snapshot() {
+        return text;
+    }
+
+    /// Runs `program` on the current text, keeping its edits only if it completed.
+    synchronized Program.Execution run(Program program) {
+        Program.Execution execution = program.run(text);
+        if (execution.completed()) {
+            text = execution.text();
+        }
+        return execution;
+    }
+}
@@ -24,15 +24,6 @@ static void pd(String delim, Object... values) {
 }
 
 record Source(String text, int offset) {
-
-  String nextMatch(String pattern) {
-    Pattern p = Pattern.compile(pattern);
-    Matcher m = p.matcher(text);
-    if (m.find(offset)) {
-      return m.group();
-    }
-    return null;
-  }
 }
 
 record Error(String msg) {
@@ -45,18 +36,35 @@ record Match<T>(T value, Source source, Error error) {
 
 interface Parser<T> {
   Match<T> parse(Source source);
+
+  /**
+   * Matches {@code pattern} anchored at the source offset. The pattern is compiled once by the caller and
+   * each thread reuses one matcher, so a match costs no setup beyond resetting it. The matcher is reset to
+   * an empty text after each match so it does not keep the last input reachable.
+   */
+  static Parser<String> regex(Pattern pattern) {
+    // transparent bounds let lookarounds and \b see the text around the region
+    ThreadLocal<Matcher> matchers =
+      ThreadLocal.withInitial(() -> pattern.matcher("").useTransparentBounds(true));
+    return s -> {
+      Matcher m = matchers.get().reset(s.text());
+      try {
+        m.region(s.offset(), s.text().length());
+        if (m.lookingAt()) {
+          return new Match<>(m.group(), new Source(s.text(), m.end()), null);
+        }
+      } finally {
+        m.reset("");
+      }
+      return new Match<>(null, s, new Error("Did not match " + pattern + "."));
+    };
+  }
 }
 
 void main() {
   p("Hello", "Parser", "Combinators", "!");
 
-  Parser<String> wordParser = s -> {
-    String match = s.nextMatch("\\p{javaUpperCase}\\p{javaLowerCase}*");
-    
-    return match == null ?
-      new Match<>(null, s, new Error("Did not match capital word.")) :
-      new Match<>(match, new Source(s.text, s.offset + match.length()), null);
-  };
+  Parser<String> wordParser = Parser.regex(Pattern.compile("\\p{javaUpperCase}\\p{javaLowerCase}*"));
 
   // Parse zero words.
   {
@@ -77,6 +85,15 @@ void main() {
     Match<String> match = wordStarParser.parse(new Source("ThereIsSomethingInTheWater", 0));
     p(match);
   }
+
+  // Matches are anchored: a word later in the text does not match here.
+  {
+    Match<String> match = wordParser.parse(new Source("thereIs", 0));
+    if (match.error() == null) {
+      throw new AssertionError("failed: matched " + match.value() + " ahead of the offset");
+    }
+    p(match);
+  }
 }
 
 /** Higher order parser that matches zero or more occurrences of another parser. */
@@ -0,0 +1,431 @@
+package com.github.abargnesi.parser_combinators;
+
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Associativity;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.CompiledExpression;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.DivideParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Expr;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.ExpressionCompiler;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.ExpressionParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Operator;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.OperatorParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Source;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongBinaryOperator;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/// Evaluates an [Expr] over whole columns, one value per row for each variable. Rows are processed in
+/// blocks: each node of the tree fills a block-sized buffer, and the built-in operators combine buffers
+/// with `jdk.incubator.vector` lane-wise operations. Other operators, and the rows left over after the
+/// last full vector, take the scalar path.
+///
+/// As in [Expr#evaluate()], `long` overflow and division by zero throw [ArithmeticException]. This is the
+/// only class that needs the incubator module, so the parser itself compiles and runs without it.
+final class ColumnEvaluator {
+
+  private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+  static final int BLOCK = 1024;
+
+  /// The built-in operators of [OperatorParser#ARITHMETIC]. Each gets its own vector loop, as lane-wise
+  /// operations are only intrinsified for a constant operator.
+  private enum Builtin {
+    ADD,
+    SUB,
+    MUL,
+    DIV;
+
+    long apply(long a, long b) {
+      return switch (this) {
+        case ADD -> Math.addExact(a, b);
+        case SUB -> Math.subtractExact(a, b);
+        case MUL -> Math.multiplyExact(a, b);
+        case DIV -> Math.divideExact(a, b);
+      };
+    }
+
+    double apply(double a, double b) {
+      return switch (this) {
+        case ADD -> a + b;
+        case SUB -> a - b;
+        case MUL -> a * b;
+        case DIV -> a / b;
+      };
+    }
+  }
+
+  private final Expr expr;
+  private final Map<String, Integer> variables = new HashMap<>();
+  private final int depth;
+  private final boolean vectorized;
+
+  ColumnEvaluator(Expr expr) {
+    // a one-lane species has no SIMD to offer
+    this(expr, LONGS.length() > 1);
+  }
+
+  ColumnEvaluator(Expr expr, boolean vectorized) {
+    this.expr = expr;
+    for (String name : expr.variables()) {
+      variables.put(name, variables.size());
+    }
+    this.depth = depth(expr);
+    this.vectorized = vectorized;
+  }
+
+  private static int depth(Expr expr) {
+    return switch (expr) {
+      case Expr.Num num -> 1;
+      case Expr.Var var -> 1;
+      case Expr.Neg neg -> 1 + depth(neg.operand());
+      case Expr.Binary binary -> 1 + Math.max(depth(binary.lhs()), depth(binary.rhs()));
+    };
+  }
+
+  /// The built-in an operator applies, by its function rather than its symbol, or `null` for any other
+  /// function, which takes the scalar path.
+  private static Builtin builtin(Operator operator) {
+    LongBinaryOperator apply = operator.apply();
+    if (apply == OperatorParser.ADD) {
+      return Builtin.ADD;
+    } else if (apply == OperatorParser.SUBTRACT) {
+      return Builtin.SUB;
+    } else if (apply == OperatorParser.MULTIPLY) {
+      return Builtin.MUL;
+    } else if (apply == OperatorParser.DIVIDE) {
+      return Builtin.DIV;
+    }
+    return null;
+  }
+
+  /// Combines the first whole vectors of `out` and `rhs` into `out`; returns the first row left. Throws
+  /// [ArithmeticException] on overflow, like the scalar path.
+  private static int lanewise(Builtin op, long[] out, long[] rhs, int n) {
+    int step = LONGS.length();
+    int bound = LONGS.loopBound(n);
+    int i = 0;
+    switch (op) {
+      case ADD -> {
+        for (; i < bound; i += step) {
+          LongVector a = LongVector.fromArray(LONGS, out, i);
+          LongVector b = LongVector.fromArray(LONGS, rhs, i);
+          LongVector sum = a.add(b);
+          // overflow iff both operands differ in sign from the sum
+          checkOverflow(a.lanewise(VectorOperators.XOR, sum).and(b.lanewise(VectorOperators.XOR, sum)));
+          sum.intoArray(out, i);
+        }
+      }
+      case SUB -> {
+        for (; i < bound; i += step) {
+          LongVector a = LongVector.fromArray(LONGS, out, i);
+          LongVector b = LongVector.fromArray(LONGS, rhs, i);
+          LongVector difference = a.sub(b);
+          // overflow iff the operands differ in sign and the difference differs from the minuend
+          checkOverflow(a.lanewise(VectorOperators.XOR, b).and(a.lanewise(VectorOperators.XOR, difference)));
+          difference.intoArray(out, i);
+        }
+      }
+      case MUL -> {
+        for (; i < bound; i += step) {
+          LongVector a = LongVector.fromArray(LONGS, out, i);
+          LongVector b = LongVector.fromArray(LONGS, rhs, i);
+          // products of operands within int range cannot overflow; other vectors are checked per row
+          LongVector high =
+              a.add(1L << 31).or(b.add(1L << 31)).lanewise(VectorOperators.LSHR, 32);
+          if (high.compare(VectorOperators.NE, 0).anyTrue()) {
+            for (int j = i; j < i + step; j++) {
+              out[j] = Math.multiplyExact(out[j], rhs[j]);
+            }
+          } else {
+            a.mul(b).intoArray(out, i);
+          }
+        }
+      }
+      case DIV -> {
+        for (; i < bound; i += step) {
+          LongVector a = LongVector.fromArray(LONGS, out, i);
+          LongVector b = LongVector.fromArray(LONGS, rhs, i);
+          // only Long.MIN_VALUE / -1 overflows; such vectors are divided per row, which throws
+          if (a.compare(VectorOperators.EQ, Long.MIN_VALUE)
+              .and(b.compare(VectorOperators.EQ, -1L))
+              .anyTrue()) {
+            for (int j = i; j < i + step; j++) {
+              out[j] = Math.divideExact(out[j], rhs[j]);
+            }
+          } else {
+            a.div(b).intoArray(out, i);
+          }
+        }
+      }
+    }
+    return i;
+  }
+
+  private static int lanewise(Builtin op, double[] out, double[] rhs, int n) {
+    int step = DOUBLES.length();
+    int bound = DOUBLES.loopBound(n);
+    int i = 0;
+    switch (op) {
+      case ADD -> {
+        for (; i < bound; i += step) {
+          DoubleVector.fromArray(DOUBLES, out, i)
+              .add(DoubleVector.fromArray(DOUBLES, rhs, i))
+              .intoArray(out, i);
+        }
+      }
+      case SUB -> {
+        for (; i < bound; i += step) {
+          DoubleVector.fromArray(DOUBLES, out, i)
+              .sub(DoubleVector.fromArray(DOUBLES, rhs, i))
+              .intoArray(out, i);
+        }
+      }
+      case MUL -> {
+        for (; i < bound; i += step) {
+          DoubleVector.fromArray(DOUBLES, out, i)
+              .mul(DoubleVector.fromArray(DOUBLES, rhs, i))
+              .intoArray(out, i);
+        }
+      }
+      case DIV -> {
+        for (; i < bound; i += step) {
+          DoubleVector.fromArray(DOUBLES, out, i)
+              .div(DoubleVector.fromArray(DOUBLES, rhs, i))
+              .intoArray(out, i);
+        }
+      }
+    }
+    return i;
+  }
+
+  /// Throws if any lane of `signs` is negative, the overflow test of [Math#addExact(long, long)].
+  private static void checkOverflow(LongVector signs) {
+    if (signs.compare(VectorOperators.LT, 0).anyTrue()) {
+      throw new ArithmeticException("long overflow");
+    }
+  }
+
+  long[] evaluate(Map<String, long[]> columns) {
+    long[][] inputs = new long[variables.size()][];
+    int rows = -1;
+    for (Map.Entry<String, Integer> variable : variables.entrySet()) {
+      long[] column = columns.get(variable.getKey());
+      rows = checkColumn(variable.getKey(), column == null ? -1 : column.length, rows);
+      inputs[variable.getValue()] = column;
+    }
+    if (rows < 0) {
+      throw new IllegalArgumentException("no variables to take the row count from");
+    }
+
+    long[] result = new long[rows];
+    long[][] buffers = new long[depth][BLOCK];
+    for (int from = 0; from < rows; from += BLOCK) {
+      int n = Math.min(BLOCK, rows - from);
+      evaluate(expr, inputs, from, n, buffers, 0);
+      System.arraycopy(buffers[0], 0, result, from, n);
+    }
+    return result;
+  }
+
+  double[] evaluateDoubles(Map<String, double[]> columns) {
+    double[][] inputs = new double[variables.size()][];
+    int rows = -1;
+    for (Map.Entry<String, Integer> variable : variables.entrySet()) {
+      double[] column = columns.get(variable.getKey());
+      rows = checkColumn(variable.getKey(), column == null ? -1 : column.length, rows);
+      inputs[variable.getValue()] = column;
+    }
+    if (rows < 0) {
+      throw new IllegalArgumentException("no variables to take the row count from");
+    }
+
+    double[] result = new double[rows];
+    double[][] buffers = new double[depth][BLOCK];
+    for (int from = 0; from < rows; from += BLOCK) {
+      int n = Math.min(BLOCK, rows - from);
+      evaluate(expr, inputs, from, n, buffers, 0);
+      System.arraycopy(buffers[0], 0, result, from, n);
+    }
+    return result;
+  }
+
+  private static int checkColumn(String name, int length, int rows) {
+    if (length < 0) {
+      throw new IllegalArgumentException("no column for variable: " + name);
+    } else if (rows >= 0 && length != rows) {
+      throw new IllegalArgumentException(
+          "column " + name + " has " + length + " rows, expected " + rows);
+    }
+    return length;
+  }
+
+  /// Fills `buffers[level]` with the values of `node` for rows `from` to `from + n`.
+  private void evaluate(Expr node, long[][] inputs, int from, int n, long[][] buffers, int level) {
+    long[] out = buffers[level];
+    switch (node) {
+      case Expr.Num num -> Arrays.fill(out, 0, n, num.value());
+      case Expr.Var var -> System.arraycopy(inputs[variables.get(var.name())], from, out, 0, n);
+      case Expr.Neg neg -> {
+        evaluate(neg.operand(), inputs, from, n, buffers, level);
+        int i = 0;
+        if (vectorized) {
+          for (int bound = LONGS.loopBound(n); i < bound; i += LONGS.length()) {
+            LongVector operand = LongVector.fromArray(LONGS, out, i);
+            if (operand.compare(VectorOperators.EQ, Long.MIN_VALUE).anyTrue()) {
+              throw new ArithmeticException("long overflow");
+            }
+            operand.neg().intoArray(out, i);
+          }
+        }
+        for (; i < n; i++) {
+          out[i] = Math.negateExact(out[i]);
+        }
+      }
+      case Expr.Binary binary -> {
+        evaluate(binary.lhs(), inputs, from, n, buffers, level);
+        evaluate(binary.rhs(), inputs, from, n, buffers, level + 1);
+        long[] rhs = buffers[level + 1];
+        Builtin builtin = builtin(binary.operator());
+        if (builtin == null) {
+          LongBinaryOperator apply = binary.operator().apply();
+          for (int i = 0; i < n; i++) {
+            out[i] = apply.applyAsLong(out[i], rhs[i]);
+          }
+        } else {
+          for (int i = vectorized ? lanewise(builtin, out, rhs, n) : 0; i < n; i++) {
+            out[i] = builtin.apply(out[i], rhs[i]);
+          }
+        }
+      }
+    }
+  }
+
+  private void evaluate(Expr node, double[][] inputs, int from, int n, double[][] buffers, int level) {
+    double[] out = buffers[level];
+    switch (node) {
+      case Expr.Num num -> Arrays.fill(out, 0, n, num.value());
+      case Expr.Var var -> System.arraycopy(inputs[variables.get(var.name())], from, out, 0, n);
+      case Expr.Neg neg -> {
+        evaluate(neg.operand(), inputs, from, n, buffers, level);
+        int i = 0;
+        if (vectorized) {
+          for (int bound = DOUBLES.loopBound(n); i < bound; i += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, out, i).neg().intoArray(out, i);
+          }
+        }
+        for (; i < n; i++) {
+          out[i] = -out[i];
+        }
+      }
+      case Expr.Binary binary -> {
+        Builtin builtin = builtin(binary.operator());
+        if (builtin == null) {
+          throw new IllegalArgumentException(
+              "operator has no double form: " + binary.operator().symbol().symbol());
+        }
+        evaluate(binary.lhs(), inputs, from, n, buffers, level);
+        evaluate(binary.rhs(), inputs, from, n, buffers, level + 1);
+        double[] rhs = buffers[level + 1];
+        for (int i = vectorized ? lanewise(builtin, out, rhs, n) : 0; i < n; i++) {
+          out[i] = builtin.apply(out[i], rhs[i]);
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    {
+      Expr expr =
+          ExpressionParser.arithmetic().parse(new Source("(a - b) * 10", 0)).value().get().value();
+      CompiledExpression compiled = ExpressionCompiler.compile(expr);
+
+    // not a multiple of the block or vector length, so every path runs
+    int rows = ColumnEvaluator.BLOCK * 3 + 7;
+    long[] a = new long[rows];
+    long[] b = new long[rows];
+    double[] x = new double[rows];
+    double[] y = new double[rows];
+    for (int i = 0; i < rows; i++) {
+      a[i] = i * 31L;
+      b[i] = rows - i;
+      x[i] = a[i];
+      y[i] = b[i];
+    }
+    long[] vector = new ColumnEvaluator(expr).evaluate(Map.of("a", a, "b", b));
+    long[] scalar = new ColumnEvaluator(expr, false).evaluate(Map.of("a", a, "b", b));
+    double[] doubles = new ColumnEvaluator(expr).evaluateDoubles(Map.of("a", x, "b", y));
+    for (int i = 0; i < rows; i++) {
+      long expected = compiled.evaluate(a[i], b[i]);
+      assert vector[i] == expected && scalar[i] == expected && doubles[i] == expected
+          : "row " + i + " did not yield " + expected;
+    }
+
+    Expr negated =
+        ExpressionParser.arithmetic().parse(new Source("-a/2+b", 0)).value().get().value();
+    long[] result = new ColumnEvaluator(negated).evaluate(Map.of("a", a, "b", b));
+    assert result[rows - 1] == -a[rows - 1] / 2 + b[rows - 1] : "-a/2+b did not match per row";
+
+    try {
+      new ColumnEvaluator(expr).evaluate(Map.of("a", a));
+      assert false : "missing column b was accepted";
+    } catch (IllegalArgumentException expected) {
+      // no column for variable: b
+    }
+
+    // an operator reusing a built-in symbol is evaluated by its own function
+    Expr max =
+        new ExpressionParser(new Operator(DivideParser.singleton, 2, Associativity.LEFT, Math::max))
+            .parse(new Source("a / b", 0))
+            .value()
+            .get()
+            .value();
+    long[] maxima = new ColumnEvaluator(max).evaluate(Map.of("a", a, "b", b));
+    for (int i = 0; i < rows; i++) {
+      assert maxima[i] == Math.max(a[i], b[i]) : "custom / did not yield max at row " + i;
+    }
+
+      // overflow throws on the vector and the scalar path, as it does when walking the tree
+      long[] big = new long[rows];
+      Arrays.fill(big, 1L << 40);
+      // once in a whole vector and once in the rows left after the last one
+      big[5] = Long.MAX_VALUE;
+      big[rows - 1] = Long.MAX_VALUE;
+      long[] minimum = new long[rows];
+      Arrays.fill(minimum, 1L << 40);
+      minimum[5] = Long.MIN_VALUE;
+      minimum[rows - 1] = Long.MIN_VALUE;
+      long[] minusOne = new long[rows];
+      Arrays.fill(minusOne, -1L);
+      Map<String, Map<String, long[]>> inputs =
+          Map.of(
+              "a + b", Map.of("a", big, "b", big),
+              "a - -b", Map.of("a", big, "b", big),
+              "a * b", Map.of("a", big, "b", big),
+              "-(a + 1) - b", Map.of("a", big, "b", big),
+              "a / b", Map.of("a", minimum, "b", minusOne));
+      for (Map.Entry<String, Map<String, long[]>> input : inputs.entrySet()) {
+        String text = input.getKey();
+        Expr overflowing =
+            ExpressionParser.arithmetic().parse(new Source(text, 0)).value().get().value();
+        for (boolean vectorized : new boolean[] {true, false}) {
+          try {
+            new ColumnEvaluator(overflowing, vectorized).evaluate(input.getValue());
+            assert false : text + " did not overflow over columns";
+          } catch (ArithmeticException expected) {
+            // long overflow
+          }
+        }
+      }
+      // the other rows of a / b still divide
+      minimum[5] = minimum[rows - 1] = -(1L << 40);
+      Expr quotient = ExpressionParser.arithmetic().parse(new Source("a / b", 0)).value().get().value();
+      long[] quotients = new ColumnEvaluator(quotient).evaluate(Map.of("a", minimum, "b", minusOne));
+      assert quotients[0] == -(1L << 40) && quotients[5] == 1L << 40 : "a / -1 did not negate";
+    }
+  }
+}
@@ -1,7 +1,27 @@
 package com.github.abargnesi.parser_combinators;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongFunction;
+import java.util.function.LongUnaryOperator;
 
 /// # Language
 ///
@@ -124,6 +144,150 @@ public class MathExpressionParser {
     }
   }
 
+  /// The unboxed result of a [LongParser]; an unmatched result may carry the [Error] that stopped it.
+  record LongResult(Source source, boolean matched, long value, Error error) {
+
+    LongResult(Source source, boolean matched, long value) {
+      this(source, matched, value, NoError);
+    }
+  }
+
+  /// A parser of unboxed `long` values. `parseLong` skips the `Optional`/`Value`/`Long` wrappers; the
+  /// [Parser] view boxes the value only when composed with other parsers.
+  interface LongParser extends Parser<Long> {
+
+    LongResult parseLong(Source s);
+
+    @Override
+    default Result<Long, Error> parse(Source s) {
+      LongResult result = parseLong(s);
+      return result.matched
+          ? new Result<>(result.source, Optional.of(new Value<>(result.value)), NoError)
+          : new Result<>(s, Optional.empty(), result.error);
+    }
+
+    default LongParser mapLong(LongUnaryOperator func) {
+      return s -> {
+        LongResult result = this.parseLong(s);
+        return result.matched
+            ? new LongResult(result.source, true, func.applyAsLong(result.value))
+            : result;
+      };
+    }
+
+    default <U> Parser<U> bindLong(LongFunction<Parser<U>> func) {
+      return s -> {
+        LongResult result = this.parseLong(s);
+        if (result.matched) {
+          return func.apply(result.value).parse(result.source);
+        } else {
+          return new Result<>(s, Optional.empty(), result.error);
+        }
+      };
+    }
+  }
+
+  /// A grammar rule that may call itself in leftmost position, e.g. `Expr <- Expr "-" Num / Num`.
+  ///
+  /// Results are memoized per offset. A left-recursive call finds the failed seed planted for its own
+  /// offset; the body is then reparsed with the previous match as the seed for as long as the match
+  /// grows, which parses left-associative chains in one pass per operand. Only direct left recursion is
+  /// supported. The memo lives for one top-level parse: the outermost rule call on a thread starts it,
+  /// every rule reached on the same input shares it, and it is dropped when that call returns or throws.
+  static final class Rule<T> implements Parser<T> {
+
+    private static final class Entry<T> {
+      Result<T, Error> result;
+      // the seed is planted and the body has not returned yet
+      boolean planted;
+      // the body called this rule at the same offset while it was being parsed
+      boolean leftRecursive;
+    }
+
+    /// The memo of one top-level parse, one entry per offset for each rule.
+    private static final class Scope {
+      final String input;
+      final Map<Rule<?>, Entry<?>[]> entries = new IdentityHashMap<>();
+
+      Scope(String input) {
+        this.input = input;
+      }
+    }
+
+    private static final ThreadLocal<Scope> SCOPE = new ThreadLocal<>();
+
+    private Parser<T> body;
+
+    /// Sets the body, which may refer to this rule.
+    Rule<T> define(Parser<T> body) {
+      this.body = body;
+      return this;
+    }
+
+    @Override
+    public Result<T, Error> parse(Source s) {
+      Scope scope = SCOPE.get();
+      if (scope != null && scope.input == s.input) {
+        return parse(s, scope);
+      }
+      Scope top = new Scope(s.input);
+      SCOPE.set(top);
+      try {
+        return parse(s, top);
+      } finally {
+        if (scope == null) {
+          SCOPE.remove();
+        } else {
+          SCOPE.set(scope);
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Result<T, Error> parse(Source s, Scope scope) {
+      Entry<T>[] entries =
+          (Entry<T>[]) scope.entries.computeIfAbsent(this, r -> new Entry<?>[s.input.length() + 1]);
+      Entry<T> entry = entries[s.offset];
+      if (entry != null) {
+        if (entry.planted) {
+          // hit the planted seed: this is a left-recursive call
+          entry.leftRecursive = true;
+        }
+        return entry.result;
+      }
+
+      // plant a failed seed so the leftmost self-call fails instead of recursing forever
+      entry = new Entry<>();
+      entry.result = new Result<>(s, Optional.empty(), NoError);
+      entry.planted = true;
+      entries[s.offset] = entry;
+      Result<T, Error> result;
+      try {
+        result = body.parse(s);
+        entry.planted = false;
+      } finally {
+        if (entry.planted) {
+          // the body threw; a later call must parse again rather than see the seed
+          entries[s.offset] = null;
+        }
+      }
+      entry.result = result;
+      if (!entry.leftRecursive || result.value.isEmpty()) {
+        return result;
+      }
+
+      // grow the seed while each reparse consumes more input
+      while (true) {
+        Result<T, Error> grown = body.parse(s);
+        if (grown.value.isEmpty() || grown.source.offset <= result.source.offset) {
+          return result;
+        }
+        result = grown;
+        entry.result = result;
+      }
+    }
+  }
+
   abstract static class SymbolParser implements Parser<String> {
 
     private final String symbol;
@@ -132,6 +296,10 @@ public class MathExpressionParser {
       this.symbol = symbol;
     }
 
+    String symbol() {
+      return symbol;
+    }
+
     @Override
     public Result<String, Error> parse(Source s) {
       if (s.input.startsWith(symbol, s.offset)) {
@@ -183,33 +351,727 @@ public class MathExpressionParser {
     }
   }
 
-  static class NumberParser implements Parser<Long> {
+  static class OpenParenthesisParser extends SymbolParser {
+
+    static final OpenParenthesisParser singleton = new OpenParenthesisParser();
+
+    private OpenParenthesisParser() {
+      super("(");
+    }
+  }
+
+  static class CloseParenthesisParser extends SymbolParser {
+
+    static final CloseParenthesisParser singleton = new CloseParenthesisParser();
+
+    private CloseParenthesisParser() {
+      super(")");
+    }
+  }
+
+  static class VariableParser implements Parser<String> {
 
     @Override
-    public Result<Long, Error> parse(Source s) {
-      StringBuilder b = null;
-      for (int i = s.offset, l = s.input.length(); i < l; i++) {
-        int cp = s.input.codePointAt(i);
-        if (Character.isDigit(cp)) {
-          if (b == null) {
-            b = new StringBuilder();
-          }
-          b.append(Integer.parseInt(Character.toString(cp)));
-        } else {
+    public Result<String, Error> parse(Source s) {
+      int i = s.offset;
+      for (int l = s.input.length(); i < l; i++) {
+        char c = s.input.charAt(i);
+        boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+        if (!letter && (i == s.offset || c < '0' || c > '9')) {
           break;
         }
       }
 
-      if (b == null || b.isEmpty()) {
-        // did not find a number
+      if (i == s.offset) {
+        // did not find a name
         return new Result<>(s, Optional.empty(), NoError);
+      } else {
+        return new Result<>(
+            new Source(s.input, i), Optional.of(new Value<>(s.input.substring(s.offset, i))), NoError);
+      }
+    }
+  }
+
+  static class NumberParser implements LongParser {
+
+    @Override
+    public LongResult parseLong(Source s) {
+      long n = 0;
+      int i = s.offset;
+      for (int l = s.input.length(); i < l; ) {
+        char c = s.input.charAt(i);
+        int digit;
+        int width;
+        if (c >= '0' && c <= '9') {
+          digit = c - '0';
+          width = 1;
+        } else if (c < 0x80) {
+          break;
+        } else {
+          int cp = s.input.codePointAt(i);
+          if (!Character.isDigit(cp)) {
+            break;
+          }
+          digit = Character.digit(cp, 10);
+          width = Character.charCount(cp);
+        }
+
+        if (n > (Long.MAX_VALUE - digit) / 10) {
+          // too large for a long
+          return new LongResult(s, false, 0);
+        }
+        n = n * 10 + digit;
+        i += width;
+      }
+
+      if (i == s.offset) {
+        // did not find a number
+        return new LongResult(s, false, 0);
       } else {
         // found a whole number
-        String numberString = b.toString();
+        return new LongResult(new Source(s.input, i), true, n);
+      }
+    }
+  }
+
+  enum Associativity {
+    LEFT,
+    RIGHT
+  }
+
+  /// A binary operator: its symbol, how tightly it binds (higher binds tighter) and how it groups with
+  /// operators of the same precedence.
+  record Operator(
+      SymbolParser symbol,
+      int precedence,
+      Associativity associativity,
+      LongBinaryOperator apply) {}
+
+  /// The operator loop shared by [OperatorParser] and [ExpressionParser]: parses `operand (operator
+  /// operand)*` in one left-to-right pass, grouping by the operator table with an explicit operator stack
+  /// instead of one nested parser per precedence level. What an operand is and how two are combined is up
+  /// to the [Operands].
+  static final class Precedence {
+
+    /// The operand stack of one parse.
+    interface Operands {
+
+      /// Parses an operand at `s` and pushes it; returns where it ends, or `null` if there is none.
+      Source push(Source s);
+
+      /// Replaces the top two operands with `op` applied to them. `position` is where `op` starts.
+      void reduce(Operator op, int position);
+
+      /// Skips what may precede an operator, e.g. blank space.
+      default Source skip(Source s) {
+        return s;
+      }
+    }
+
+    private Precedence() {}
+
+    /// Continues after the first operand, already pushed and ending at `at`, until no operator followed by
+    /// an operand is left; returns where the last operand ends. `operands` is left with one operand.
+    static Source climb(Operator[] operators, Operands operands, Source at) {
+      Operator[] pending = new Operator[8];
+      // where each pending operator's symbol starts
+      int[] positions = new int[8];
+      int pendingCount = 0;
+      while (true) {
+        Source before = operands.skip(at);
+        Operator op = null;
+        Source afterOp = null;
+        for (Operator candidate : operators) {
+          Result<String, Error> symbol = candidate.symbol().parse(before);
+          if (symbol.value().isPresent()) {
+            op = candidate;
+            afterOp = symbol.source();
+            break;
+          }
+        }
+        if (op == null) {
+          break;
+        }
+
+        // reduce the operators that bind at least as tightly as this one; the final reduction would
+        // apply them in the same order if no operand follows
+        while (pendingCount > 0) {
+          Operator top = pending[pendingCount - 1];
+          if (top.precedence() < op.precedence()
+              || (top.precedence() == op.precedence()
+                  && op.associativity() == Associativity.RIGHT)) {
+            break;
+          }
+          pendingCount--;
+          operands.reduce(top, positions[pendingCount]);
+        }
+
+        Source next = operands.push(afterOp);
+        if (next == null) {
+          break;
+        }
+        if (pendingCount == pending.length) {
+          pending = Arrays.copyOf(pending, pendingCount << 1);
+          positions = Arrays.copyOf(positions, pendingCount << 1);
+        }
+        positions[pendingCount] = before.offset();
+        pending[pendingCount++] = op;
+        at = next;
+      }
+
+      while (pendingCount > 0) {
+        pendingCount--;
+        operands.reduce(pending[pendingCount], positions[pendingCount]);
+      }
+      return at;
+    }
+  }
+
+  /// Parses `operand (operator operand)*` with [Precedence], computing the value as it goes. An operator
+  /// not followed by an operand is left unparsed. An operator that throws [ArithmeticException], e.g. on
+  /// overflow or division by zero, fails the parse with an [Error] at that operator.
+  static final class OperatorParser implements LongParser {
+
+    private final LongParser operand;
+    private final Operator[] operators;
+
+    OperatorParser(LongParser operand, Operator... operators) {
+      this.operand = operand;
+      this.operators = operators.clone();
+    }
+
+    // the functions of the built-in operators, which [ColumnEvaluator] recognizes by identity
+    static final LongBinaryOperator ADD = Math::addExact;
+    static final LongBinaryOperator SUBTRACT = Math::subtractExact;
+    static final LongBinaryOperator MULTIPLY = Math::multiplyExact;
+    static final LongBinaryOperator DIVIDE = Math::divideExact;
+
+    /// `+` and `-` below `*` and `/`, all left associative.
+    static final Operator[] ARITHMETIC = {
+      new Operator(PlusParser.singleton, 1, Associativity.LEFT, ADD),
+      new Operator(MinusParser.singleton, 1, Associativity.LEFT, SUBTRACT),
+      new Operator(MultiplyParser.singleton, 2, Associativity.LEFT, MULTIPLY),
+      new Operator(DivideParser.singleton, 2, Associativity.LEFT, DIVIDE)
+    };
+
+    static OperatorParser arithmetic(LongParser operand) {
+      return new OperatorParser(operand, ARITHMETIC);
+    }
+
+    @Override
+    public LongResult parseLong(Source s) {
+      LongResult first = operand.parseLong(s);
+      if (!first.matched()) {
+        return first;
+      }
+
+      Values values = new Values(operand);
+      values.push(first.value());
+      Source at;
+      try {
+        at = Precedence.climb(operators, values, first.source());
+      } catch (ArithmeticException e) {
+        return new LongResult(s, false, 0, new Error(s.input(), values.applying, e.getMessage()));
+      }
+      return new LongResult(at, true, values.values[0]);
+    }
+
+    /// Unboxed `long` operands, combined by applying the operators' functions.
+    private static final class Values implements Precedence.Operands {
+
+      private final LongParser operand;
+      long[] values = new long[8];
+      int count;
+      // where the operator being applied starts, to report it if it throws
+      int applying;
+
+      Values(LongParser operand) {
+        this.operand = operand;
+      }
+
+      void push(long value) {
+        if (count == values.length) {
+          values = Arrays.copyOf(values, count << 1);
+        }
+        values[count++] = value;
+      }
+
+      @Override
+      public Source push(Source s) {
+        LongResult result = operand.parseLong(s);
+        if (!result.matched()) {
+          return null;
+        }
+        push(result.value());
+        return result.source();
+      }
+
+      @Override
+      public void reduce(Operator op, int position) {
+        applying = position;
+        count--;
+        values[count - 1] = op.apply().applyAsLong(values[count - 1], values[count]);
+      }
+    }
+  }
+
+  /// A parsed expression, kept so it can be evaluated many times without reparsing.
+  sealed interface Expr permits Expr.Num, Expr.Var, Expr.Neg, Expr.Binary {
+
+    record Num(long value) implements Expr {}
+
+    record Var(String name) implements Expr {}
+
+    record Neg(Expr operand) implements Expr {}
+
+    record Binary(Operator operator, Expr lhs, Expr rhs) implements Expr {}
+
+    /// Walks the tree; see [ExpressionCompiler] for repeated evaluation.
+    default long evaluate() {
+      return evaluate(Map.of());
+    }
+
+    default long evaluate(Map<String, Long> variables) {
+      return switch (this) {
+        case Num num -> num.value();
+        case Var var -> {
+          Long value = variables.get(var.name());
+          if (value == null) {
+            throw new IllegalArgumentException("unbound variable: " + var.name());
+          }
+          yield value;
+        }
+        case Neg neg -> Math.negateExact(neg.operand().evaluate(variables));
+        case Binary binary ->
+            binary
+                .operator()
+                .apply()
+                .applyAsLong(binary.lhs().evaluate(variables), binary.rhs().evaluate(variables));
+      };
+    }
+
+    /// Variable names in order of first appearance.
+    default List<String> variables() {
+      Set<String> names = new LinkedHashSet<>();
+      collectVariables(this, names);
+      return List.copyOf(names);
+    }
+
+    private static void collectVariables(Expr expr, Set<String> names) {
+      switch (expr) {
+        case Num num -> {}
+        case Var var -> names.add(var.name());
+        case Neg neg -> collectVariables(neg.operand(), names);
+        case Binary binary -> {
+          collectVariables(binary.lhs(), names);
+          collectVariables(binary.rhs(), names);
+        }
+      }
+    }
+  }
+
+  /// Parses an [Expr] tree with the same [Precedence] loop [OperatorParser] computes a value with:
+  ///
+  /// ```
+  /// Var     <- [a-zA-Z_] [a-zA-Z0-9_]*
+  /// Operand <- Num / Var / Minus Operand / "(" Expr ")"
+  /// Expr    <- Operand (operator Operand)*
+  /// ```
+  ///
+  /// Blank space between tokens is skipped.
+  static final class ExpressionParser implements Parser<Expr> {
+
+    private final NumberParser number = new NumberParser();
+    private final VariableParser variable = new VariableParser();
+    private final Operator[] operators;
+
+    ExpressionParser(Operator... operators) {
+      this.operators = operators.clone();
+    }
+
+    static ExpressionParser arithmetic() {
+      return new ExpressionParser(OperatorParser.ARITHMETIC);
+    }
+
+    @Override
+    public Result<Expr, Error> parse(Source s) {
+      Result<Expr, Error> first = operand(s);
+      if (first.value().isEmpty()) {
+        return first;
+      }
+
+      Trees trees = new Trees();
+      trees.push(first.value().get().value());
+      Source at = Precedence.climb(operators, trees, first.source());
+      return new Result<>(at, Optional.of(new Value<>(trees.trees[0])), NoError);
+    }
+
+    /// [Expr] operands, combined into [Expr.Binary] nodes.
+    private final class Trees implements Precedence.Operands {
+
+      Expr[] trees = new Expr[8];
+      int count;
+
+      void push(Expr tree) {
+        if (count == trees.length) {
+          trees = Arrays.copyOf(trees, count << 1);
+        }
+        trees[count++] = tree;
+      }
+
+      @Override
+      public Source push(Source s) {
+        Result<Expr, Error> result = operand(s);
+        if (result.value().isEmpty()) {
+          return null;
+        }
+        push(result.value().get().value());
+        return result.source();
+      }
+
+      @Override
+      public void reduce(Operator op, int position) {
+        count--;
+        trees[count - 1] = new Expr.Binary(op, trees[count - 1], trees[count]);
+      }
+
+      @Override
+      public Source skip(Source s) {
+        return blank(s);
+      }
+    }
+
+    /// Skips blank space before a token.
+    private static Source blank(Source s) {
+      int i = s.offset;
+      while (i < s.input.length() && Character.isWhitespace(s.input.charAt(i))) {
+        i++;
+      }
+      return i == s.offset ? s : new Source(s.input, i);
+    }
+
+    private Result<Expr, Error> operand(Source at) {
+      Source s = blank(at);
+      LongResult num = number.parseLong(s);
+      if (num.matched()) {
+        return new Result<>(num.source(), Optional.of(new Value<>(new Expr.Num(num.value()))), NoError);
+      }
+
+      Result<String, Error> name = variable.parse(s);
+      if (name.value().isPresent()) {
         return new Result<>(
-            new Source(s.input, s.offset + numberString.length()),
-            Optional.of(new Value<>(Long.parseLong(numberString))),
-            NoError);
+            name.source(), Optional.of(new Value<>(new Expr.Var(name.value().get().value()))), NoError);
+      }
+
+      Result<String, Error> minus = MinusParser.singleton.parse(s);
+      if (minus.value().isPresent()) {
+        Result<Expr, Error> operand = operand(minus.source());
+        return operand.value().isPresent()
+            ? new Result<>(
+                operand.source(),
+                Optional.of(new Value<>(new Expr.Neg(operand.value().get().value()))),
+                NoError)
+            : new Result<>(at, Optional.empty(), NoError);
+      }
+
+      Result<String, Error> open = OpenParenthesisParser.singleton.parse(s);
+      if (open.value().isPresent()) {
+        Result<Expr, Error> inner = parse(open.source());
+        if (inner.value().isPresent()) {
+          Result<String, Error> close = CloseParenthesisParser.singleton.parse(blank(inner.source()));
+          if (close.value().isPresent()) {
+            return new Result<>(close.source(), inner.value(), NoError);
+          }
+        }
+      }
+      return new Result<>(at, Optional.empty(), NoError);
+    }
+  }
+
+  /// Compiles an [Expr] into a `(long, ...)long` [MethodHandle] tree taking one argument per variable:
+  /// numbers become constants, variables select their argument and operators are bound as the handle's
+  /// arguments, so evaluation neither walks the tree nor boxes. Each tree is bound as a constant into its
+  /// own hidden copy of [CompiledTemplate], so the JIT inlines it into `evaluate`.
+  static final class ExpressionCompiler {
+
+    private static final MethodHandle APPLY;
+    private static final MethodHandle NEGATE;
+    private static final MethodHandle IDENTITY = MethodHandles.identity(long.class);
+    // the class file of CompiledTemplate, copied for each compiled expression
+    private static final byte[] TEMPLATE;
+
+    static {
+      try (InputStream in =
+          ExpressionCompiler.class
+              .getClassLoader()
+              .getResourceAsStream(
+                  CompiledTemplate.class.getName().replace('.', '/') + ".class")) {
+        TEMPLATE = Objects.requireNonNull(in, "no class file for CompiledTemplate").readAllBytes();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        APPLY =
+            lookup.findVirtual(
+                LongBinaryOperator.class,
+                "applyAsLong",
+                MethodType.methodType(long.class, long.class, long.class));
+        NEGATE =
+            lookup.findStatic(
+                Math.class, "negateExact", MethodType.methodType(long.class, long.class));
+      } catch (ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    static CompiledExpression compile(Expr expr) {
+      List<String> variables = expr.variables();
+      MethodType type =
+          MethodType.methodType(long.class, Collections.nCopies(variables.size(), long.class));
+      MethodHandle handle = handle(expr, variables, type);
+      MethodHandle spread = handle.asSpreader(long[].class, variables.size());
+      try {
+        MethodHandles.Lookup lookup =
+            MethodHandles.lookup()
+                .defineHiddenClassWithClassData(TEMPLATE, List.of(handle, spread), true);
+        return (CompiledExpression)
+            lookup
+                .findConstructor(
+                    lookup.lookupClass(), MethodType.methodType(void.class, List.class))
+                .invoke(variables);
+      } catch (RuntimeException | java.lang.Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private static MethodHandle handle(Expr expr, List<String> variables, MethodType type) {
+      return switch (expr) {
+        case Expr.Num num ->
+            MethodHandles.dropArguments(
+                MethodHandles.constant(long.class, num.value()), 0, type.parameterList());
+        case Expr.Var var ->
+            MethodHandles.permuteArguments(IDENTITY, type, variables.indexOf(var.name()));
+        case Expr.Neg neg ->
+            MethodHandles.filterReturnValue(handle(neg.operand(), variables, type), NEGATE);
+        case Expr.Binary binary -> {
+          // (long, long)long -> (long..., long)long -> (long..., long...)long -> (long...)long
+          int arity = type.parameterCount();
+          MethodHandle apply = APPLY.bindTo(binary.operator().apply());
+          MethodHandle withLhs =
+              MethodHandles.collectArguments(apply, 0, handle(binary.lhs(), variables, type));
+          MethodHandle withRhs =
+              MethodHandles.collectArguments(
+                  withLhs, arity, handle(binary.rhs(), variables, type));
+          int[] reorder = new int[arity * 2];
+          for (int i = 0; i < reorder.length; i++) {
+            reorder[i] = i % Math.max(arity, 1);
+          }
+          yield MethodHandles.permuteArguments(withRhs, type, reorder);
+        }
+      };
+    }
+  }
+
+  /// An [Expr] compiled by [ExpressionCompiler]. Expressions of up to three variables evaluate
+  /// without allocating through the fixed-arity overloads; each overload throws
+  /// [IllegalArgumentException] when its arity differs from the number of variables.
+  interface CompiledExpression {
+
+    /// The order the `evaluate` methods take variable values in.
+    List<String> variables();
+
+    long evaluate();
+
+    long evaluate(long value);
+
+    long evaluate(long first, long second);
+
+    long evaluate(long first, long second, long third);
+
+    long evaluate(long... values);
+  }
+
+  /// The template of compiled expressions: [ExpressionCompiler] defines a hidden copy of this class
+  /// for each expression, passing its handles as class data. In a copy `HANDLE` and `SPREAD` are
+  /// trusted constants, which an instance field would not be.
+  static final class CompiledTemplate implements CompiledExpression {
+
+    // null in this template itself, which is never instantiated
+    private static final MethodHandle HANDLE;
+    private static final MethodHandle SPREAD;
+
+    static {
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        HANDLE = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 0);
+        SPREAD = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 1);
+      } catch (IllegalAccessException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    private final List<String> variables;
+
+    private CompiledTemplate(List<String> variables) {
+      this.variables = variables;
+    }
+
+    @Override
+    public List<String> variables() {
+      return variables;
+    }
+
+    @Override
+    public long evaluate() {
+      arity(0);
+      try {
+        return (long) HANDLE.invokeExact();
+      } catch (RuntimeException | java.lang.Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public long evaluate(long value) {
+      arity(1);
+      try {
+        return (long) HANDLE.invokeExact(value);
+      } catch (RuntimeException | java.lang.Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public long evaluate(long first, long second) {
+      arity(2);
+      try {
+        return (long) HANDLE.invokeExact(first, second);
+      } catch (RuntimeException | java.lang.Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public long evaluate(long first, long second, long third) {
+      arity(3);
+      try {
+        return (long) HANDLE.invokeExact(first, second, third);
+      } catch (RuntimeException | java.lang.Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public long evaluate(long... values) {
+      arity(values.length);
+      try {
+        return (long) SPREAD.invokeExact(values);
+      } catch (RuntimeException | java.lang.Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private void arity(int count) {
+      if (count != variables.size()) {
+        throw new IllegalArgumentException(
+            "expected values for " + variables + " but got " + count);
+      }
+    }
+  }
+
+  /// A thread-safe cache of parse results by [Source], evicting the least recently used entry beyond
+  /// `capacity`. Any equal input hits; the result of a hit points at the caller's input rather than the
+  /// first caller's. The values in cached results are shared between callers.
+  ///
+  /// Two threads missing on the same input at once may both parse it; the later result replaces the
+  /// earlier.
+  static final class ParseCache<T> implements Parser<T> {
+
+    private final Parser<T> parser;
+    private final int capacity;
+    // guarded by itself
+    private final LinkedHashMap<Source, Result<T, Error>> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ParseCache(Parser<T> parser, int capacity) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("capacity must be positive: " + capacity);
+      }
+      this.parser = parser;
+      this.capacity = capacity;
+      this.entries =
+          new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Source, Result<T, Error>> eldest) {
+              if (size() > ParseCache.this.capacity) {
+                evictions.increment();
+                return true;
+              }
+              return false;
+            }
+          };
+    }
+
+    @Override
+    public Result<T, Error> parse(Source s) {
+      Result<T, Error> result;
+      synchronized (entries) {
+        result = entries.get(s);
+      }
+      if (result != null) {
+        hits.increment();
+        return result.source().input() == s.input() ? result : rebase(result, s.input());
+      }
+
+      // parse outside the lock, so a slow input does not hold up the others
+      misses.increment();
+      result = parser.parse(s);
+      synchronized (entries) {
+        entries.put(s, result);
+      }
+      return result;
+    }
+
+    /// `result` with its source and error pointing at the caller's `input` rather than the first
+    /// caller's.
+    private static <T> Result<T, Error> rebase(Result<T, Error> result, String input) {
+      Error error = result.error();
+      return new Result<>(
+          new Source(input, result.source().offset()),
+          result.value(),
+          error == NoError ? error : new Error(input, error.position(), error.error()));
+    }
+
+    long hits() {
+      return hits.sum();
+    }
+
+    long misses() {
+      return misses.sum();
+    }
+
+    long evictions() {
+      return evictions.sum();
+    }
+
+    int size() {
+      synchronized (entries) {
+        return entries.size();
       }
     }
   }
@@ -234,6 +1096,14 @@ public class MathExpressionParser {
       assert np.parse(new Source("  123", 0))
               .equals(new Result<>(new Source("  123", 0), Optional.empty(), NoError))
           : "  123 did not result in empty";
+
+      assert new NumberParser()
+              .parseLong(new Source("9223372036854775807", 0))
+              .equals(new LongResult(new Source("9223372036854775807", 19), true, Long.MAX_VALUE))
+          : "9223372036854775807 did not yield Long.MAX_VALUE";
+
+      assert !new NumberParser().parseLong(new Source("9223372036854775808", 0)).matched()
+          : "9223372036854775808 did not result in empty";
     }
 
     // Plus   <- "+"
@@ -295,6 +1165,21 @@ public class MathExpressionParser {
           : "-2312 did not result in unary negation value";
     }
 
+    // Unary on the unboxed path
+    {
+      Result<Either<String, Long>, Error> result =
+          MinusParser.singleton
+              .and(new NumberParser().mapLong(number -> -number))
+              .parse(new Source("-2312", 0));
+
+      assert result.equals(
+              new Result<>(
+                  new Source("-2312", 5),
+                  Optional.of(new Value<>(Either.<String, Long>ofRight(-2312L))),
+                  NoError))
+          : "-2312 did not result in unboxed unary negation value";
+    }
+
     // Binary <- Num (Plus / Minus / Mult / Div) Num
     {
       // TODO - Operation types should either result in itself or not. They are essentially typed tokens.
@@ -310,5 +1195,247 @@ public class MathExpressionParser {
       Result<Long, Error> result = binaryParser.parse(new Source("125+517", 0));
       System.out.println(result);
     }
+
+    // Binary on the unboxed path
+    {
+      Parser<Long> binaryParser =
+          new NumberParser()
+              .bindLong(
+                  lhs ->
+                      or(MinusParser.singleton, PlusParser.singleton)
+                          .bind(op -> new NumberParser().mapLong(rhs -> lhs + rhs)));
+
+      assert binaryParser
+              .parse(new Source("125+517", 0))
+              .equals(new Result<>(new Source("125+517", 7), Optional.of(new Value<>(642L)), NoError))
+          : "125+517 did not yield 642 unboxed";
+    }
+
+    // Expr <- Expr (Plus / Minus) Term / Term
+    // Term <- Term (Mult / Div) Num / Num
+    {
+      Rule<Long> expr = new Rule<>();
+      Rule<Long> term = new Rule<>();
+      term.define(
+          or(
+              term.bind(
+                  lhs ->
+                      or(MultiplyParser.singleton, DivideParser.singleton)
+                          .bind(
+                              op ->
+                                  new NumberParser()
+                                      .mapLong(
+                                          rhs ->
+                                              op.value().equals("*")
+                                                  ? lhs.value() * rhs
+                                                  : lhs.value() / rhs))),
+              new NumberParser()));
+      expr.define(
+          or(
+              expr.bind(
+                  lhs ->
+                      or(PlusParser.singleton, MinusParser.singleton)
+                          .bind(
+                              op ->
+                                  term.bind(
+                                      rhs ->
+                                          constant(
+                                              op.value().equals("+")
+                                                  ? lhs.value() + rhs.value()
+                                                  : lhs.value() - rhs.value())))),
+              term));
+
+      assert expr.parse(new Source("10-2-3", 0))
+              .equals(new Result<>(new Source("10-2-3", 6), Optional.of(new Value<>(5L)), NoError))
+          : "10-2-3 did not associate to the left";
+
+      assert expr.parse(new Source("100/10/5", 0))
+              .equals(new Result<>(new Source("100/10/5", 8), Optional.of(new Value<>(2L)), NoError))
+          : "100/10/5 did not associate to the left";
+
+      assert expr.parse(new Source("2+3*4-1", 0))
+              .equals(new Result<>(new Source("2+3*4-1", 7), Optional.of(new Value<>(13L)), NoError))
+          : "2+3*4-1 did not yield 13";
+
+      assert expr.parse(new Source("7-", 0))
+              .equals(new Result<>(new Source("7-", 1), Optional.of(new Value<>(7L)), NoError))
+          : "7- did not stop after 7";
+
+      assert expr.parse(new Source("-", 0))
+              .equals(new Result<>(new Source("-", 0), Optional.empty(), NoError))
+          : "- did not result in empty";
+
+      String chain = "1" + "-1".repeat(10_000);
+      assert expr.parse(new Source(chain, 0)).value().get().value() == -9_999L
+          : "long chain did not yield -9999";
+
+      // a parse that throws leaves nothing behind for the next parse of the same input
+      String divideByZero = "1/0";
+      for (int i = 0; i < 2; i++) {
+        try {
+          expr.parse(new Source(divideByZero, 0));
+          assert false : "1/0 did not throw";
+        } catch (ArithmeticException expected) {
+          // / by zero
+        }
+      }
+      assert expr.parse(new Source(chain, 0)).value().get().value() == -9_999L
+          : "reparsing the long chain did not yield -9999";
+    }
+
+    // Expr <- Num ((Plus / Minus / Mult / Div) Num)*, by precedence table
+    {
+      OperatorParser arithmetic = OperatorParser.arithmetic(new NumberParser());
+
+      assert arithmetic
+              .parseLong(new Source("2+3*4-1", 0))
+              .equals(new LongResult(new Source("2+3*4-1", 7), true, 13))
+          : "2+3*4-1 did not yield 13";
+
+      assert arithmetic
+              .parseLong(new Source("2*3+4*5", 0))
+              .equals(new LongResult(new Source("2*3+4*5", 7), true, 26))
+          : "2*3+4*5 did not yield 26";
+
+      assert arithmetic
+              .parseLong(new Source("100/10/5", 0))
+              .equals(new LongResult(new Source("100/10/5", 8), true, 2))
+          : "100/10/5 did not associate to the left";
+
+      assert arithmetic
+              .parseLong(new Source("7-", 0))
+              .equals(new LongResult(new Source("7-", 1), true, 7))
+          : "7- did not stop after 7";
+
+      assert !arithmetic.parseLong(new Source("*7", 0)).matched() : "*7 did not result in empty";
+
+      OperatorParser rightMinus =
+          new OperatorParser(
+              new NumberParser(),
+              new Operator(MinusParser.singleton, 1, Associativity.RIGHT, (lhs, rhs) -> lhs - rhs));
+      assert rightMinus.parseLong(new Source("10-2-3", 0)).value() == 11
+          : "10-2-3 did not associate to the right";
+
+      String chain = "1" + "+2*3".repeat(10_000);
+      assert arithmetic.parseLong(new Source(chain, 0)).value() == 60_001L
+          : "long chain did not yield 60001";
+
+      // a failed operator application is an error result rather than an exception
+      assert arithmetic
+              .parse(new Source("1/0+2", 0))
+              .equals(
+                  new Result<>(
+                      new Source("1/0+2", 0),
+                      Optional.empty(),
+                      new Error("1/0+2", 1, "/ by zero")))
+          : "1/0+2 did not result in a division by zero error";
+
+      String overflow = Long.MAX_VALUE + "+1";
+      assert arithmetic
+              .parseLong(new Source(overflow, 0))
+              .equals(
+                  new LongResult(
+                      new Source(overflow, 0),
+                      false,
+                      0,
+                      new Error(overflow, 19, "long overflow")))
+          : overflow + " did not result in an overflow error";
+
+      // Long.MIN_VALUE / -1 overflows too; these operands are negated, with 0 standing for Long.MIN_VALUE
+      OperatorParser negated =
+          OperatorParser.arithmetic(new NumberParser().mapLong(n -> n == 0 ? Long.MIN_VALUE : -n));
+      assert negated
+              .parseLong(new Source("0/1", 0))
+              .equals(
+                  new LongResult(
+                      new Source("0/1", 0), false, 0, new Error("0/1", 1, "long overflow")))
+          : "Long.MIN_VALUE / -1 did not result in an overflow error";
+      assert negated.parseLong(new Source("0/2", 0)).value() == Long.MIN_VALUE / -2
+          : "Long.MIN_VALUE / -2 did not divide";
+    }
+
+    // Expr trees, evaluated by walking and by compiled method handles
+    {
+      String input = "-(25+25)*2-100/10/5";
+      Result<Expr, Error> result = ExpressionParser.arithmetic().parse(new Source(input, 0));
+      Expr expr = result.value().get().value();
+      assert result.source().offset() == input.length() : input + " was not fully parsed";
+      assert expr.evaluate() == -102L : input + " did not evaluate to -102";
+
+      CompiledExpression compiled = ExpressionCompiler.compile(expr);
+      for (int i = 0; i < 10_000; i++) {
+        assert compiled.evaluate() == -102L : input + " did not compile to -102";
+      }
+
+      assert ExpressionParser.arithmetic()
+              .parse(new Source("(1+2", 0))
+              .equals(new Result<>(new Source("(1+2", 0), Optional.empty(), NoError))
+          : "(1+2 did not result in empty";
+    }
+
+    // parse cache: the least recently used expression is evicted first
+    {
+      ParseCache<Expr> cache = new ParseCache<>(ExpressionParser.arithmetic(), 2);
+      Result<Expr, Error> first = cache.parse(new Source("(a - b) * 10", 0));
+      assert cache.parse(new Source("(a - b) * 10", 0)) == first : "cache missed a repeated expression";
+      // an equal input hits, and the result points at the caller's input
+      String equalInput = new String("(a - b) * 10");
+      Result<Expr, Error> hit = cache.parse(new Source(equalInput, 0));
+      assert hit.equals(first)
+              && hit.source().input() == equalInput
+              && hit.value().get() == first.value().get()
+          : "cache missed an equal input";
+      // the least recently used input is evicted first
+      cache.parse(new Source("a + 1", 0));
+      cache.parse(new Source("b", 0));
+      cache.parse(new Source("(a - b) * 10", 0));
+      cache.parse(new Source("b", 0));
+      assert cache.hits() == 3
+              && cache.misses() == 4
+              && cache.evictions() == 2
+              && cache.size() == 2
+          : "cache counted "
+              + cache.hits()
+              + " hits, "
+              + cache.misses()
+              + " misses and "
+              + cache.evictions()
+              + " evictions";
+    }
+
+    // named variables, per row
+    {
+      Expr expr =
+          ExpressionParser.arithmetic().parse(new Source("(a - b) * 10", 0)).value().get().value();
+      assert expr.variables().equals(List.of("a", "b")) : "(a - b) * 10 did not use a and b";
+      assert expr.evaluate(Map.of("a", 7L, "b", 3L)) == 40L : "(a - b) * 10 did not yield 40";
+
+      CompiledExpression compiled = ExpressionCompiler.compile(expr);
+      assert compiled.evaluate(7, 3) == 40L : "compiled (a - b) * 10 did not yield 40";
+      assert compiled.getClass().isHidden() : "compiled handle is not a hidden class constant";
+      assert compiled.evaluate(new long[] {7, 3}) == 40L : "spread (a - b) * 10 did not yield 40";
+      try {
+        compiled.evaluate(7);
+        assert false : "one value was accepted for (a - b) * 10";
+      } catch (IllegalArgumentException expected) {
+        // expected values for [a, b] but got 1
+      }
+      Expr four =
+          ExpressionParser.arithmetic().parse(new Source("a - b * c + d", 0)).value().get().value();
+      assert ExpressionCompiler.compile(four).evaluate(1, 2, 3, 4) == -1L
+          : "compiled a - b * c + d did not yield -1";
+
+      // overflow throws when walking the tree, as it does over columns in [ColumnEvaluator]
+      for (String text : List.of("a + b", "a - -b", "a * b", "-(a + 1) - b")) {
+        Expr overflowing =
+            ExpressionParser.arithmetic().parse(new Source(text, 0)).value().get().value();
+        try {
+          overflowing.evaluate(Map.of("a", Long.MAX_VALUE, "b", Long.MAX_VALUE));
+          assert false : text + " did not overflow";
+        } catch (ArithmeticException expected) {
+          // long overflow
+        }
+      }
+    }
   }
 }
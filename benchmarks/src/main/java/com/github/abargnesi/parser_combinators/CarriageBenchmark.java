@@ -0,0 +1,132 @@
+package com.github.abargnesi.parser_combinators;
+
+import com.github.abargnesi.parser_combinators.Carriage.Parser;
+import com.github.abargnesi.parser_combinators.Carriage.Result;
+import com.github.abargnesi.parser_combinators.Carriage.Rope;
+import com.github.abargnesi.parser_combinators.Carriage.Search;
+import com.github.abargnesi.parser_combinators.Carriage.Source;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// JMH benchmarks of every Carriage parser and combinator over documents of 16, 1024 and 65536 records,
+/// each parsed whole by a repetition of the parser, and of a rope search for a literal at its end.
+/// Carriage uses preview features, so each fork runs with `--enable-preview`. Run with the GC profiler for
+/// bytes allocated per operation (`gc.alloc.rate.norm`):
+///
+/// ```
+/// java -jar target/benchmarks.jar CarriageBenchmark -prof gc
+/// ```
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@State(Scope.Benchmark)
+public class CarriageBenchmark {
+
+  @Param({"16", "1024", "65536"})
+  public int records;
+
+  final Parser<String> wordLiteral =
+      Parser.token("'").and(Parser.word().map(w -> Parser.token("'").and(Parser.value(w.getValue().get()))));
+  final Parser<?> token = Parser.zeroOrMore(Parser.token("Carriage"));
+  final Parser<?> word = Parser.zeroOrMore(Parser.word().and(Parser.token(" ")));
+  final Parser<?> number = Parser.zeroOrMore(Parser.num().and(Parser.token(",")));
+  final Parser<?> andMap = Parser.zeroOrMore(wordLiteral);
+  final Parser<?> or = Parser.zeroOrMore(Parser.token("-").or(Parser.token("g")));
+  final Parser<?> orChain = Parser.zeroOrMore(letters());
+  final Parser<?> dispatch = Parser.compile(Parser.zeroOrMore(letters()));
+  final Parser<?> zeroOrMore = Parser.zeroOrMore(Parser.anyChar());
+  final Parser<?> oneOrMore = Parser.oneOrMore(Parser.anyChar());
+  final Search search = Search.literal("'Language'");
+
+  Source tokens;
+  Source words;
+  Source numbers;
+  Source literals;
+  Source gs;
+  Source hs;
+  Source chars;
+  Rope rope;
+
+  /// `a / b / ... / h`
+  static Parser<?> letters() {
+    Parser<?> letters = Parser.token("a");
+    for (char c = 'b'; c <= 'h'; c++) {
+      letters = letters.or(Parser.token(String.valueOf(c)));
+    }
+    return letters;
+  }
+
+  @Setup
+  public void setup() {
+    tokens = new Source(0, "Carriage".repeat(records));
+    words = new Source(0, "Carriage ".repeat(records));
+    numbers = new Source(0, "5060,".repeat(records));
+    literals = new Source(0, "'Carriage'".repeat(records));
+    gs = new Source(0, "g".repeat(records));
+    hs = new Source(0, "h".repeat(records));
+    chars = new Source(0, "C".repeat(records));
+    rope = Rope.of("'Carriage''Text'".repeat(records) + "'Language'");
+  }
+
+  @Benchmark
+  public Result<?> token() {
+    return token.parse(tokens);
+  }
+
+  @Benchmark
+  public Result<?> word() {
+    return word.parse(words);
+  }
+
+  @Benchmark
+  public Result<?> number() {
+    return number.parse(numbers);
+  }
+
+  @Benchmark
+  public Result<?> andMap() {
+    return andMap.parse(literals);
+  }
+
+  @Benchmark
+  public Result<?> or() {
+    return or.parse(gs);
+  }
+
+  @Benchmark
+  public Result<?> orChain() {
+    return orChain.parse(hs);
+  }
+
+  @Benchmark
+  public Result<?> dispatch() {
+    return dispatch.parse(hs);
+  }
+
+  @Benchmark
+  public Result<?> zeroOrMore() {
+    return zeroOrMore.parse(chars);
+  }
+
+  @Benchmark
+  public Result<?> oneOrMore() {
+    return oneOrMore.parse(chars);
+  }
+
+  @Benchmark
+  public int search() {
+    return search.find(rope, 0);
+  }
+}
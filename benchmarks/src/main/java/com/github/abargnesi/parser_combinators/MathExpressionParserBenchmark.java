@@ -0,0 +1,170 @@
+package com.github.abargnesi.parser_combinators;
+
+import static com.github.abargnesi.parser_combinators.MathExpressionParser.or;
+
+import com.github.abargnesi.parser_combinators.MathExpressionParser.CompiledExpression;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Either;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Error;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Expr;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.ExpressionCompiler;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.ExpressionParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.LongResult;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.MinusParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.NumberParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.OperatorParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Parser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.PlusParser;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Result;
+import com.github.abargnesi.parser_combinators.MathExpressionParser.Source;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// JMH benchmarks of the number, Unary, Binary and operator-table parsers with operands of 1, 9 and 18
+/// digits, tree-walking and compiled evaluation of a parsed expression, and per-row, scalar column and
+/// vector column evaluation over a million rows. Run with the GC profiler for bytes allocated per
+/// operation (`gc.alloc.rate.norm`):
+///
+/// ```
+/// java -jar target/benchmarks.jar MathExpressionParserBenchmark -prof gc
+/// ```
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class MathExpressionParserBenchmark {
+
+  /// Parser inputs built from an operand of `digits` sevens.
+  @State(Scope.Benchmark)
+  public static class Operands {
+
+    @Param({"1", "9", "18"})
+    public int digits;
+
+    final NumberParser number = new NumberParser();
+    final Parser<Either<String, Long>> unary =
+        MinusParser.singleton.and(new NumberParser().mapLong(n -> -n));
+    final Parser<Long> binary =
+        new NumberParser()
+            .bindLong(
+                lhs ->
+                    or(MinusParser.singleton, PlusParser.singleton)
+                        .bind(op -> new NumberParser().mapLong(rhs -> lhs + rhs)));
+    final OperatorParser operators = OperatorParser.arithmetic(new NumberParser());
+
+    Source operand;
+    Source negated;
+    Source sum;
+    Source chain;
+
+    @Setup
+    public void setup() {
+      String n = "7".repeat(digits);
+      operand = new Source(n, 0);
+      negated = new Source("-" + n, 0);
+      sum = new Source(n + "+" + n, 0);
+      chain = new Source(n + "+" + n + "/" + n + "-" + n, 0);
+    }
+  }
+
+  /// One parsed expression, evaluated repeatedly.
+  @State(Scope.Benchmark)
+  public static class Expression {
+
+    final Expr expr =
+        ExpressionParser.arithmetic()
+            .parse(new Source("-(25+25)*2-100/10/5*(7+3)-(1+2)*(3+4)", 0))
+            .value()
+            .get()
+            .value();
+    final CompiledExpression compiled = ExpressionCompiler.compile(expr);
+  }
+
+  /// `(a - b) * 10` over a million rows.
+  @State(Scope.Benchmark)
+  public static class Columns {
+
+    static final int ROWS = 1_000_000;
+
+    final long[] a = new long[ROWS];
+    final long[] b = new long[ROWS];
+    final long[] out = new long[ROWS];
+    Map<String, long[]> columns;
+    CompiledExpression perRow;
+    ColumnEvaluator scalar;
+    ColumnEvaluator vector;
+
+    @Setup
+    public void setup() {
+      for (int i = 0; i < ROWS; i++) {
+        a[i] = i;
+        b[i] = ROWS - i;
+      }
+      columns = Map.of("a", a, "b", b);
+      Expr expr =
+          ExpressionParser.arithmetic().parse(new Source("(a - b) * 10", 0)).value().get().value();
+      perRow = ExpressionCompiler.compile(expr);
+      scalar = new ColumnEvaluator(expr, false);
+      vector = new ColumnEvaluator(expr);
+    }
+  }
+
+  @Benchmark
+  public LongResult number(Operands operands) {
+    return operands.number.parseLong(operands.operand);
+  }
+
+  @Benchmark
+  public Result<Either<String, Long>, Error> unary(Operands operands) {
+    return operands.unary.parse(operands.negated);
+  }
+
+  @Benchmark
+  public Result<Long, Error> binary(Operands operands) {
+    return operands.binary.parse(operands.sum);
+  }
+
+  @Benchmark
+  public LongResult operators(Operands operands) {
+    return operands.operators.parseLong(operands.chain);
+  }
+
+  @Benchmark
+  public long walk(Expression expression) {
+    return expression.expr.evaluate();
+  }
+
+  @Benchmark
+  public long compiled(Expression expression) {
+    return expression.compiled.evaluate();
+  }
+
+  @Benchmark
+  public long[] rows(Columns columns) {
+    for (int i = 0; i < Columns.ROWS; i++) {
+      columns.out[i] = columns.perRow.evaluate(columns.a[i], columns.b[i]);
+    }
+    return columns.out;
+  }
+
+  @Benchmark
+  public long[] scalar(Columns columns) {
+    return columns.scalar.evaluate(columns.columns);
+  }
+
+  @Benchmark
+  public long[] vector(Columns columns) {
+    return columns.vector.evaluate(columns.columns);
+  }
+}